@@ -0,0 +1,72 @@
+package eu.whrl.lsystemwallpaper.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import eu.whrl.lsystemwallpaper.LSystemCatalogue;
+import eu.whrl.lsystemwallpaper.LSystemDescription;
+
+/*
+ * Runs the benchmarks over everything in the catalogue, with the GC
+ * profiler on for allocation rates, and writes the results to
+ * lsystem-benchmarks.csv for plotting against depth. Any of the usual JMH
+ * options can be given as well, and override these, e.g.
+ *
+ *   java -jar target/benchmarks.jar -p extraIterations=0,1,2,3 expand
+ *
+ * Each L-System is run on its own, so that depths below one can be left
+ * out rather than running depth one several times over.
+ */
+public class BenchmarkMain {
+	
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		
+		Collection<String> names = commandLine.getParameter("name").orElse(LSystemCatalogue.names());
+		Collection<String> extras = commandLine.getParameter("extraIterations").orElse(
+				Arrays.asList(LSystemBenchmark.class.getField("extraIterations").getAnnotation(Param.class).value()));
+		
+		List<RunResult> results = new ArrayList<RunResult>();
+		for (String name : names) {
+			LSystemDescription description = LSystemCatalogue.get(name);
+			if (description == null) {
+				throw new IllegalArgumentException("No L-System called " + name);
+			}
+			List<String> depths = new ArrayList<String>();
+			for (String extra : extras) {
+				if (description.iterations + Integer.parseInt(extra) >= 1) {
+					depths.add(extra);
+				}
+			}
+			if (depths.isEmpty()) {
+				continue;
+			}
+			
+			ChainedOptionsBuilder options = new OptionsBuilder()
+					.addProfiler(GCProfiler.class)
+					.param("name", name)
+					.param("extraIterations", depths.toArray(new String[0]));
+			if (commandLine.getIncludes().isEmpty()) {
+				options.include(LSystemBenchmark.class.getSimpleName());
+			}
+			results.addAll(new Runner(options.parent(commandLine).build()).run());
+		}
+		
+		// Written once at the end, with every L-System in
+		ResultFormatType format = commandLine.getResultFormat().orElse(ResultFormatType.CSV);
+		String file = commandLine.getResult().orElse("lsystem-benchmarks." + format.toString().toLowerCase());
+		ResultFormatFactory.getInstance(format, file).writeOut(results);
+	}
+}
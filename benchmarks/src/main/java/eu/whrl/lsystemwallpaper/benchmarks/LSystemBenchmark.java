@@ -0,0 +1,124 @@
+package eu.whrl.lsystemwallpaper.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.whrl.lsystemwallpaper.LSystem;
+import eu.whrl.lsystemwallpaper.LSystemCache;
+import eu.whrl.lsystemwallpaper.LSystemCatalogue;
+import eu.whrl.lsystemwallpaper.LSystemDescription;
+import eu.whrl.lsystemwallpaper.Logging;
+import eu.whrl.lsystemwallpaper.Turtle;
+import eu.whrl.lsystemwallpaper.VertexBuffer;
+
+/*
+ * Each stage of getting an L-System ready to draw, for every L-System in
+ * the catalogue, at a few depths around the one it's drawn at. Plotting a
+ * stage against the depth gives its scaling curve.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LSystemBenchmark {
+	
+	// BenchmarkMain fills this in from the catalogue, these are only the
+	// defaults for running through the JMH jar directly
+	@Param({"32segment", "cross", "dragoncurve", "fractalplant", "hilbert", "kochcurve",
+			"levyccurve", "peanogosper", "sierpinski", "snowflake", "tree"})
+	public String name;
+	
+	// Added to the depth in the catalogue. BenchmarkMain leaves out the
+	// ones that would go below a depth of one.
+	@Param({"-2", "-1", "0", "1"})
+	public int extraIterations;
+	
+	private LSystemDescription description;
+	private int iterations;
+	
+	// Constructed once, for the stages that don't change it
+	private LSystem lsystem;
+	
+	@Setup
+	public void setUp() {
+		Logging.setLogger(new Logging.SilentLogger());
+		description = LSystemCatalogue.get(name);
+		if (description == null) {
+			throw new IllegalArgumentException("No L-System called " + name);
+		}
+		iterations = description.iterations + extraIterations;
+		if (iterations < 1) {
+			throw new IllegalArgumentException(name + " has no depth " + iterations);
+		}
+		lsystem = newLSystem();
+	}
+	
+	private LSystem newLSystem() {
+		return new LSystem(iterations, description.turnAngle, description.startState, description.functions);
+	}
+	
+	/* Reading the description and compiling it into opcodes. */
+	@Benchmark
+	public LSystem construct() {
+		return newLSystem();
+	}
+	
+	/*
+	 * The threads big generations are split across when expanding. It's
+	 * only a parameter of expand(), as nothing else uses them.
+	 */
+	@State(Scope.Benchmark)
+	public static class Expansion {
+		@Param({"1", "2", "4"})
+		public int threads;
+	}
+	
+	/* Producing every command of the expansion, from the start state. */
+	@Benchmark
+	public byte[] expand(Expansion expansion) {
+		lsystem.produceCommands(iterations, expansion.threads);
+		return lsystem.commands;
+	}
+	
+	/*
+	 * The bounding box, from a fresh LSystem each time because it's kept
+	 * once it's worked out. Take construct() off to get just the bounds.
+	 */
+	@Benchmark
+	public LSystem.Bounds bounds() {
+		return newLSystem().computeBounds();
+	}
+	
+	/* The fused bounds, vertex and stats walk the cache does. */
+	@Benchmark
+	public LSystemCache.Entry layOut() {
+		return LSystemCache.layOut(lsystem, lsystem.cursor());
+	}
+	
+	/* Just running the commands through the turtle. */
+	@Benchmark
+	public Turtle.StatsSink interpret() {
+		Turtle.StatsSink stats = new Turtle.StatsSink();
+		Turtle.walk(lsystem, lsystem.cursor(), stats);
+		return stats;
+	}
+	
+	/* The turtle recording vertices, as the drawing needs them. */
+	@Benchmark
+	public VertexBuffer tessellate() {
+		return VertexBuffer.tessellate(lsystem, lsystem.cursor());
+	}
+}
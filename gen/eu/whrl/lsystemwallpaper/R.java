@@ -11,6 +11,10 @@ public final class R {
     public static final class array {
         public static final int pref_lsystem_entries=0x7f070000;
         public static final int pref_lsystem_values=0x7f070001;
+        public static final int pref_speedmode_entries=0x7f070002;
+        public static final int pref_speedmode_values=0x7f070003;
+        public static final int pref_transition_entries=0x7f070004;
+        public static final int pref_transition_values=0x7f070005;
     }
     public static final class attr {
     }
@@ -0,0 +1,49 @@
+package eu.whrl.lsystemwallpaper;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Trace;
+import android.util.Log;
+
+/*
+ * Hooks the L-System core up to Android. The core itself only needs plain
+ * Java, so its log messages and trace sections are sent to logcat and
+ * systrace from here, once the service starts.
+ */
+public class AndroidPlatform {
+	
+	public static void install() {
+		Logging.setLogger(new LogcatLogger());
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+			Tracing.setBackend(new SystraceBackend());
+		}
+	}
+	
+	private static class LogcatLogger implements Logging.Logger {
+		@Override
+		public void debug(String tag, String message) {
+			Log.d(tag, message);
+		}
+		
+		@Override
+		public void warn(String tag, String message) {
+			Log.w(tag, message);
+		}
+	}
+	
+	/*
+	 * Only ever loaded when android.os.Trace is there.
+	 */
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+	private static class SystraceBackend implements Tracing.Backend {
+		@Override
+		public void begin(String name) {
+			Trace.beginSection(name);
+		}
+		
+		@Override
+		public void end() {
+			Trace.endSection();
+		}
+	}
+}
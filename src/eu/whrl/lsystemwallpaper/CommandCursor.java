@@ -0,0 +1,27 @@
+package eu.whrl.lsystemwallpaper;
+
+/*
+ * Something that hands out the fully expanded commands of an L-System one
+ * at a time, as opcodes, wherever they happen to be stored.
+ */
+public interface CommandCursor {
+	/*
+	 * Returns the next opcode, or LSystem.END once there are no more.
+	 */
+	public int next();
+	
+	/*
+	 * Go back to the first command.
+	 */
+	public void reset();
+	
+	/*
+	 * Jump to any index, so that next() returns the command there.
+	 */
+	public void seek(long index);
+	
+	/*
+	 * The index of the command that next() will return.
+	 */
+	public long getIndex();
+}
@@ -4,6 +4,16 @@ public class DrawingPosition {
 	float x;
 	float y;
 	float angle;
+	
+	/*
+	 * When the turn angle divides 360, the heading is kept as a number of
+	 * turns into a table of unit vectors instead, and angle isn't used.
+	 * The tables are null otherwise.
+	 */
+	int heading;
+	double[] unitX;
+	double[] unitY;
+	
 	public DrawingPosition() {
 		x = 0;
 		y = 0;
@@ -14,7 +24,44 @@ public class DrawingPosition {
 		this.y = y;
 		this.angle = a;
 	}
+	public DrawingPosition(float x, float y, int heading, double[] unitX, double[] unitY) {
+		this.x = x;
+		this.y = y;
+		this.heading = heading;
+		this.unitX = unitX;
+		this.unitY = unitY;
+	}
 	public DrawingPosition copy() {
-		return new DrawingPosition(x, y, angle);
+		DrawingPosition p = new DrawingPosition(x, y, angle);
+		p.heading = heading;
+		p.unitX = unitX;
+		p.unitY = unitY;
+		return p;
+	}
+	
+	/*
+	 * Turn by a number of turn angles, which is given in degrees too for
+	 * when there's no table.
+	 */
+	public void turn(int turns, float degrees) {
+		if (unitX != null) {
+			heading = (heading + turns) % unitX.length;
+			if (heading < 0) {
+				heading += unitX.length;
+			}
+		} else {
+			angle += degrees;
+		}
+	}
+	
+	public void move(float distance) {
+		if (unitX != null) {
+			x += (float) (unitX[heading]*distance);
+			y += (float) (unitY[heading]*distance);
+		} else {
+			double radians = Math.toRadians(angle);
+			x += (float) (Math.cos(radians)*distance);
+			y += (float) (Math.sin(radians)*distance);
+		}
 	}
-}
\ No newline at end of file
+}
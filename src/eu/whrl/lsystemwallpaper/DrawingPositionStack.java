@@ -0,0 +1,55 @@
+package eu.whrl.lsystemwallpaper;
+
+/*
+ * The positions a turtle saved at the start of each branch, kept in one
+ * float array so that pushing and popping doesn't allocate anything once
+ * it has grown big enough.
+ */
+public class DrawingPositionStack {
+	
+	// x, y, angle and heading for every position
+	private static final int FIELDS = 4;
+	
+	private float[] stack;
+	private int size;
+	
+	public DrawingPositionStack() {
+		stack = new float[FIELDS * 16];
+		size = 0;
+	}
+	
+	public void push(DrawingPosition p) {
+		if (size + FIELDS > stack.length) {
+			float[] newStack = new float[stack.length * 2];
+			System.arraycopy(stack, 0, newStack, 0, size);
+			stack = newStack;
+		}
+		stack[size++] = p.x;
+		stack[size++] = p.y;
+		stack[size++] = p.angle;
+		stack[size++] = p.heading;
+	}
+	
+	/*
+	 * Move the position back to the last one pushed, or return false if
+	 * there isn't one.
+	 */
+	public boolean pop(DrawingPosition into) {
+		if (size == 0) {
+			return false;
+		}
+		into.heading = (int) stack[--size];
+		into.angle = stack[--size];
+		into.y = stack[--size];
+		into.x = stack[--size];
+		return true;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public void clear() {
+		size = 0;
+	}
+}
@@ -0,0 +1,21 @@
+package eu.whrl.lsystemwallpaper;
+
+/*
+ * The colours and line widths an L-System is drawn with. The wallpaper
+ * fills them in from the preferences, and anything else that draws the
+ * same way (like SoftwareRenderer) can use the same ones.
+ */
+public class DrawingStyle {
+	
+	public static final int DEFAULT_TAIL_COLOR = 0xffffffff;
+	public static final int DEFAULT_HEAD_COLOR = 0xff00ff00;
+	public static final int DEFAULT_BG_COLOR = 0xff000000;
+	
+	public int tailColor = DEFAULT_TAIL_COLOR;
+	public int headColor = DEFAULT_HEAD_COLOR;
+	public int bgColor = DEFAULT_BG_COLOR;
+	
+	// The head is a little wider, so it stands out from the tail
+	public float tailWidth = 4f;
+	public float headWidth = 5f;
+}
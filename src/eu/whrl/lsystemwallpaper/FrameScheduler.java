@@ -0,0 +1,90 @@
+package eu.whrl.lsystemwallpaper;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.view.Choreographer;
+
+/*
+ * Calls back once for the next frame. On Jelly Bean and later that's at
+ * the next vsync, using Choreographer. Before that a Handler is used to
+ * get as close to 60 frames a second as it can.
+ */
+public abstract class FrameScheduler {
+	
+	public interface Callback {
+		/* Times are in nanoseconds, as from System.nanoTime(). */
+		void onFrame(long frameTimeNanos);
+	}
+	
+	protected Callback callback;
+	
+	public static FrameScheduler create(Handler handler, Callback callback) {
+		FrameScheduler scheduler;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			scheduler = new ChoreographerScheduler();
+		} else {
+			scheduler = new HandlerScheduler(handler);
+		}
+		scheduler.callback = callback;
+		return scheduler;
+	}
+	
+	/*
+	 * Ask for a callback on the first frame after the delay, replacing any
+	 * that was asked for already.
+	 */
+	public abstract void schedule(long delayMillis);
+	
+	public abstract void cancel();
+	
+	/*
+	 * Only ever loaded when Choreographer is there.
+	 */
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private static class ChoreographerScheduler extends FrameScheduler implements Choreographer.FrameCallback {
+		private Choreographer choreographer = Choreographer.getInstance();
+		
+		@Override
+		public void schedule(long delayMillis) {
+			choreographer.removeFrameCallback(this);
+			choreographer.postFrameCallbackDelayed(this, delayMillis);
+		}
+		
+		@Override
+		public void cancel() {
+			choreographer.removeFrameCallback(this);
+		}
+		
+		@Override
+		public void doFrame(long frameTimeNanos) {
+			callback.onFrame(frameTimeNanos);
+		}
+	}
+	
+	private static class HandlerScheduler extends FrameScheduler implements Runnable {
+		private static final long FRAME_MILLIS = 16;
+		
+		private Handler handler;
+		
+		public HandlerScheduler(Handler handler) {
+			this.handler = handler;
+		}
+		
+		@Override
+		public void schedule(long delayMillis) {
+			handler.removeCallbacks(this);
+			handler.postDelayed(this, Math.max(delayMillis, FRAME_MILLIS));
+		}
+		
+		@Override
+		public void cancel() {
+			handler.removeCallbacks(this);
+		}
+		
+		@Override
+		public void run() {
+			callback.onFrame(System.nanoTime());
+		}
+	}
+}
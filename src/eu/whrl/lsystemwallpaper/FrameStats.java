@@ -0,0 +1,129 @@
+package eu.whrl.lsystemwallpaper;
+
+import java.util.Arrays;
+
+/*
+ * Keeps track of how long the last few frames took to draw, how many lines
+ * they drew, and how many came later than they were due, for the debug
+ * overlay. Nothing here allocates once it's made, so it can be used every
+ * frame.
+ */
+public class FrameStats {
+	
+	// How many of the most recent frames the percentiles cover
+	private static final int WINDOW = 128;
+	
+	private static final long SECOND_NANOS = 1000L * 1000 * 1000;
+	
+	private long[] frameNanos = new long[WINDOW];
+	private long[] sortedNanos = new long[WINDOW];
+	private int count;
+	private int next;
+	
+	// The time between frames. A frame is slow if it takes longer than
+	// this to draw.
+	private long targetNanos;
+	
+	public long frames;
+	public long slowFrames;
+	
+	// Frames that started after they were due, and how many frame
+	// intervals went by with nothing drawn because of them
+	public long lateFrames;
+	public long droppedFrames;
+	
+	// Lines drawn in the second before the last one that ended
+	private long lineWindowStart = -1;
+	private long linesInWindow;
+	public long linesPerSecond;
+	
+	public FrameStats(long targetNanos) {
+		this.targetNanos = targetNanos;
+	}
+	
+	/*
+	 * Add a frame that started at the given time, and took the given time
+	 * to draw the given number of lines.
+	 */
+	public void addFrame(long startNanos, long durationNanos, long lines) {
+		frameNanos[next] = durationNanos;
+		next = (next + 1) % WINDOW;
+		if (count < WINDOW) {
+			count++;
+		}
+		
+		frames++;
+		if (durationNanos > targetNanos) {
+			slowFrames++;
+		}
+		
+		if (lineWindowStart < 0) {
+			lineWindowStart = startNanos;
+		}
+		if (startNanos - lineWindowStart >= SECOND_NANOS) {
+			linesPerSecond = linesInWindow * SECOND_NANOS / (startNanos - lineWindowStart);
+			lineWindowStart = startNanos;
+			linesInWindow = 0;
+		}
+		linesInWindow += lines;
+	}
+	
+	/*
+	 * A frame was due at one time and started at another, both frame times
+	 * as the scheduler gives them. Being a little out is just timing
+	 * jitter, but every whole frame interval after it was due is a frame
+	 * that should have been drawn and wasn't. A due time below 0 means it
+	 * wasn't due at any particular time.
+	 */
+	public void addDeadline(long dueNanos, long startNanos) {
+		if (dueNanos < 0) {
+			return;
+		}
+		long missed = (startNanos - dueNanos + targetNanos / 2) / targetNanos;
+		if (missed > 0) {
+			lateFrames++;
+			droppedFrames += missed;
+		}
+	}
+	
+	/*
+	 * The frame time that the given percentage of recent frames were
+	 * quicker than, or 0 if there haven't been any.
+	 */
+	public long percentile(int percent) {
+		if (count == 0) {
+			return 0;
+		}
+		System.arraycopy(frameNanos, 0, sortedNanos, 0, count);
+		Arrays.sort(sortedNanos, 0, count);
+		int index = (int) Math.ceil(percent / 100.0 * count) - 1;
+		return sortedNanos[Math.max(0, Math.min(index, count - 1))];
+	}
+	
+	/*
+	 * Count recent frames into buckets of the given width, with the last
+	 * bucket holding everything longer. Returns the biggest count.
+	 */
+	public int histogram(int[] buckets, long bucketNanos) {
+		Arrays.fill(buckets, 0);
+		int biggest = 0;
+		for (int i = 0; i < count; i++) {
+			int bucket = (int) Math.min(frameNanos[i] / bucketNanos, buckets.length - 1);
+			buckets[bucket]++;
+			biggest = Math.max(biggest, buckets[bucket]);
+		}
+		return biggest;
+	}
+	
+	public void reset() {
+		count = 0;
+		next = 0;
+		frames = 0;
+		slowFrames = 0;
+		lateFrames = 0;
+		droppedFrames = 0;
+		lineWindowStart = -1;
+		linesInWindow = 0;
+		linesPerSecond = 0;
+	}
+}
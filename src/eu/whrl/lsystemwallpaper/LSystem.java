@@ -1,115 +1,249 @@
 package eu.whrl.lsystemwallpaper;
 
-import java.util.HashMap;
-import java.util.Map;
-
-import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class LSystem {
 	
 	/*
-	 * The commands.
+	 * The commands. Each one is encoded as a single byte opcode. The first
+	 * few opcodes are fixed, and every function gets its own opcode after
+	 * those. While expanding, a function opcode means "expand this function",
+	 * and once fully expanded it means "move by this function's base distance".
+	 * Distances and angles are looked up in side tables by opcode.
 	 */
-	abstract class Command {
-		public abstract String print();	
-	}
-	class Move extends Command {
-		public float dist;
-		public Move(float d) { dist = d; }
-		public String print() {
-			return "Move " + dist;
-		}
+	public static final int END = -1;
+	public static final int TURN_LEFT = 0;
+	public static final int TURN_RIGHT = 1;
+	public static final int BRANCH_START = 2;
+	public static final int BRANCH_END = 3;
+	public static final int FIRST_FUNCTION = 4;
+	public static final int MAX_OPCODES = 256;
+	
+	/*
+	 * The most commands produceCommands() can fit in an array.
+	 */
+	public static final long MAX_PRODUCED_COMMANDS = Integer.MAX_VALUE - 8;
+	
+	/*
+	 * Generations shorter than this aren't worth splitting between threads.
+	 * Splitting into a few chunks per thread evens out chunks that happen
+	 * to expand more than others.
+	 */
+	private static final int MIN_PARALLEL_COMMANDS = 64 * 1024;
+	private static final int CHUNKS_PER_THREAD = 4;
+	
+	private static final int SYMBOL_TABLE_SIZE = 128;
+	
+	class Function {
+		public char symbol;
+		public int opcode;
+		public byte[] body;
+		public float distance;
+		public boolean alwaysBase;
 	}
-	class Turn extends Command {
-		public float angle;
-		public Turn(float a) { angle = a; }
-		public String print() {
-			return "Turn " + angle;
+	
+	/*
+	 * How many of each kind of command an expansion produces. The counts
+	 * saturate at Long.MAX_VALUE rather than overflowing.
+	 */
+	public static class ExpansionSize {
+		public long commands;
+		public long moves;
+		public long turns;
+		public long branches;
+		
+		private void add(ExpansionSize other) {
+			commands = saturatingAdd(commands, other.commands);
+			moves = saturatingAdd(moves, other.moves);
+			turns = saturatingAdd(turns, other.turns);
+			branches = saturatingAdd(branches, other.branches);
 		}
-	}
-	class Expand extends Command {
-		public String name;
-		public Expand(String n) { name = n; }
-		public String print() {
-			return "Expand " + name;
+		
+		static long saturatingAdd(long a, long b) {
+			long sum = a + b;
+			return (sum < 0) ? Long.MAX_VALUE : sum;
 		}
 	}
-	class BranchStart extends Command {
-		public String print() {
-			return "Branch ( ";
+	
+	/*
+	 * Limits on how much work expanding an L-System may do. The commands
+	 * and bytes are checked against the predicted size up front, and the
+	 * time while expanding. Only produceCommands(Budget, int) keeps to the
+	 * time, as streaming through a cursor can't stop part way.
+	 */
+	public static class Budget {
+		public long maxCommands;
+		public long maxBytes;
+		public long maxMillis;
+		
+		public Budget(long maxCommands, long maxBytes, long maxMillis) {
+			this.maxCommands = maxCommands;
+			this.maxBytes = maxBytes;
+			this.maxMillis = maxMillis;
 		}
 	}
-	class BranchEnd extends Command {
-		public String print() {
-			return ")";
-		}
+	
+	/*
+	 * The bounding box of everything an L-System draws, starting from
+	 * the origin with a heading of 0.
+	 */
+	public static class Bounds {
+		public float minX;
+		public float minY;
+		public float maxX;
+		public float maxY;
 	}
 	
-	class Function {
-		public String name;
-		public Command[] body;
-		public Command[] baseCommand;
-		public boolean alwaysBase;
+	/*
+	 * What drawing an opcode does to the turtle, starting from the origin
+	 * with a particular heading: where it ends up, how many turn steps it
+	 * is left facing, and the box it stays within on the way.
+	 */
+	private static class Transform {
+		double dx;
+		double dy;
+		int turns;
+		double minX;
+		double minY;
+		double maxX;
+		double maxY;
 	}
 	
 	/*
 	 * Member variables.
 	 */
-	public Command[] commands;
-	private Map<String,Function> functionStore;
+	public byte[] commands;
+	private int commandsIterations;
+	private Function[] functionTable;
+	
+	/*
+	 * The opcode for each ASCII symbol, or 0 where no function has that
+	 * symbol. Anything else is looked up in the function table directly.
+	 */
+	private byte[] symbolOpcodes;
+	private float[] distances;
+	private float[] angles;
 	private float turnAngle;
 	private String seed;
+	private byte[] seedCommands;
+	private int iterations;
 	
-	private int initMaxTmpCommandsContSize = 64;
-	private Command[] tmpCommands;
-	private int tmpCommandsContSize;
+	/*
+	 * The size of every opcode after each number of generations, so
+	 * sizes[n][opcode] is what the opcode turns into after n rewrites.
+	 * Filled in as deep as has been asked for so far.
+	 */
+	private ExpansionSize[][] sizes;
+	
+	/*
+	 * When the turn angle divides 360 the turtle can only ever face one
+	 * of a few headings, so what each opcode does after each number of
+	 * generations can be worked out once per heading and reused, with
+	 * transforms[n][opcode * headings + heading] like the sizes above.
+	 * headings is 0 when that isn't possible.
+	 */
+	private int headings;
+	private double[] headingX;
+	private double[] headingY;
+	private boolean balancedBranches;
+	private Transform[][] transforms;
+	private Bounds bounds;
+	
+	private long[][][] bodyOffsets;
 	
 	/*
-	 * Constructor.
+	 * Each generation is rewritten from the source buffer into the
+	 * target buffer in a single pass, then the two are swapped.
+	 */
+	private byte[] srcCommands;
+	private int srcCommandsContSize;
+	private byte[] dstCommands;
+	private int dstCommandsContSize;
+	
+	/*
+	 * Constructor. The functions and start state are compiled into the
+	 * opcode tables here, and anything malformed in them is reported with
+	 * an IllegalArgumentException.
 	 */
 	public LSystem(int iterations, float angle, String seed, String[] functions) {
-		
-		if (iterations <= 0) {
-			iterations = 1;
-		}
-		
-		functionStore = new HashMap<String,Function>();
-		
-		turnAngle = angle;
-		this.seed = seed;
-		
-		tmpCommands = new Command[initMaxTmpCommandsContSize];
-		tmpCommandsContSize = 0;
-		
-		for (String function : functions) {
-			readFunction(function);
+		long parseStartTime = System.nanoTime();
+		Tracing.begin("LSystem");
+		try {
+			if (iterations <= 0) {
+				iterations = 1;
+			}
+			
+			if (FIRST_FUNCTION + functions.length > MAX_OPCODES) {
+				throw new IllegalArgumentException("Too many functions: " + functions.length);
+			}
+			
+			symbolOpcodes = new byte[SYMBOL_TABLE_SIZE];
+			functionTable = new Function[FIRST_FUNCTION + functions.length];
+			distances = new float[FIRST_FUNCTION + functions.length];
+			angles = new float[FIRST_FUNCTION];
+			
+			turnAngle = angle;
+			angles[TURN_LEFT] = turnAngle;
+			angles[TURN_RIGHT] = -turnAngle;
+			this.seed = seed;
+			this.iterations = iterations;
+			
+			// Give every function its opcode first, so bodies can refer to
+			// functions that are defined after them.
+			String[][] components = new String[functions.length][];
+			for (int i = 0; i < functions.length; i++) {
+				// Keep trailing empty strings, so a missing distance is caught
+				components[i] = functions[i].split(":", -1);
+				declareFunction(functions[i], components[i], FIRST_FUNCTION + i);
+			}
+			for (int i = 0; i < functions.length; i++) {
+				readFunction(components[i], FIRST_FUNCTION + i);
+			}
+			
+			seedCommands = readCommands("Start state", seed);
+			
+			prepareHeadings();
+			Metrics.histogram(Metrics.PARSE).recordSince(parseStartTime);
+		} finally {
+			Tracing.end();
 		}
 		
-		produceCommands(iterations);
+		// Nothing is expanded up front: use cursor() to stream the commands,
+		// or produceCommands() if the whole array is really needed.
 	}
 	
 	/*
 	 * Methods.
 	 */
-	private Command[] readCommands(String commandString) {
-		Command[] body = new Command[commandString.length()];
+	private byte[] readCommands(String where, String commandString) {
+		byte[] body = new byte[commandString.length()];
 		int i = 0;
 		for (char c : commandString.toCharArray()) {
 			switch (c) {
 			case '+':
-				body[i] = new Turn(turnAngle);
+				body[i] = TURN_LEFT;
 				break;
 			case '-':
-				body[i] = new Turn(-turnAngle);
+				body[i] = TURN_RIGHT;
 				break;
 			case '[':
-				body[i] = new BranchStart();
+				body[i] = BRANCH_START;
 				break;
 			case ']':
-				body[i] = new BranchEnd();
+				body[i] = BRANCH_END;
 				break;
 			default:
-				body[i] = new Expand("" + c);
+				int opcode = opcodeOf(c);
+				if (opcode == 0) {
+					throw new IllegalArgumentException(where + " uses undefined function '" + c + "'");
+				}
+				body[i] = (byte) opcode;
 				break;
 			}
 			i++;
@@ -117,99 +251,873 @@ public class LSystem {
 		return body;
 	}
 	
-	private void readFunction(String function) {
+	private int opcodeOf(char symbol) {
+		if (symbol < SYMBOL_TABLE_SIZE) {
+			return symbolOpcodes[symbol] & 0xff;
+		}
+		for (int opcode = FIRST_FUNCTION; opcode < functionTable.length; opcode++) {
+			if (functionTable[opcode] != null && functionTable[opcode].symbol == symbol) {
+				return opcode;
+			}
+		}
+		return 0;
+	}
+	
+	/*
+	 * Functions look like "name:body:distance", where name is a single
+	 * symbol and the body may be empty.
+	 */
+	private void declareFunction(String function, String[] components, int opcode) {
+		if (components.length != 3) {
+			throw new IllegalArgumentException("Function \"" + function + "\" should look like name:body:distance");
+		}
 		
-		String[] components = function.split(":");
+		String name = components[0];
+		if (name.length() != 1 || "+-[]".indexOf(name.charAt(0)) != -1) {
+			throw new IllegalArgumentException("Function \"" + function + "\" must be named by a single symbol other than + - [ ]");
+		}
 		
 		Function func = new Function();
 		
-		func.name = components[0];
-		func.body = readCommands(components[1]);
-		func.baseCommand = new Command[1];
-		func.baseCommand[0] = new Move(Integer.parseInt(components[2]));
+		func.symbol = name.charAt(0);
+		func.opcode = opcode;
+		try {
+			func.distance = Integer.parseInt(components[2]);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Function '" + func.symbol + "' has a distance that isn't a number: " + components[2]);
+		}
+		
+		if (opcodeOf(func.symbol) != 0) {
+			throw new IllegalArgumentException("Function '" + func.symbol + "' is defined more than once");
+		}
+		
+		functionTable[opcode] = func;
+		if (func.symbol < SYMBOL_TABLE_SIZE) {
+			symbolOpcodes[func.symbol] = (byte) opcode;
+		}
+		distances[opcode] = func.distance;
+	}
+	
+	private void readFunction(String[] components, int opcode) {
+		Function func = functionTable[opcode];
+		
+		func.body = readCommands("Function '" + func.symbol + "'", components[1]);
 		func.alwaysBase = false;
 		if (func.body.length == 0) {
 			func.alwaysBase = true;
 		}
-		
-		functionStore.put(func.name, func);
 	}
 	
+	/*
+	 * Side tables for the opcodes.
+	 */
+	public float getDistance(int opcode) {
+		return distances[opcode];
+	}
+	
+	public float getAngle(int opcode) {
+		return angles[opcode];
+	}
+	
+	/*
+	 * How many turn angles a turn opcode turns by, for DrawingPosition.
+	 */
+	public int getTurns(int opcode) {
+		return (opcode == TURN_LEFT) ? 1 : -1;
+	}
+	
+	/*
+	 * A turtle at the origin facing along x, which looks its heading up
+	 * in a table rather than doing any trig when the turn angle allows it.
+	 */
+	public DrawingPosition startingPosition() {
+		if (headings > 0) {
+			return new DrawingPosition(0, 0, 0, headingX, headingY);
+		}
+		return new DrawingPosition(0, 0, 0);
+	}
+	
+	public String print(int opcode) {
+		switch (opcode) {
+		case TURN_LEFT:
+		case TURN_RIGHT:
+			return "Turn " + angles[opcode];
+		case BRANCH_START:
+			return "Branch ( ";
+		case BRANCH_END:
+			return ")";
+		default:
+			return "Move " + distances[opcode];
+		}
+	}
+	
+	public int getIterations() {
+		return iterations;
+	}
+	
+	/*
+	 * How many iterations the produced commands hold.
+	 */
+	public int getCommandsIterations() {
+		return commandsIterations;
+	}
+	
+	public void produceCommands() {
+		produceCommands(iterations);
+	}
+	
+	/*
+	 * Work out how big the expansion will be without doing it, by counting
+	 * what every opcode turns into one generation at a time. This only
+	 * costs iterations * (total length of the function bodies).
+	 */
+	public ExpansionSize predictSize() {
+		return predictSize(iterations);
+	}
+	
+	public ExpansionSize predictSize(int iterations) {
+		ExpansionSize size = new ExpansionSize();
+		ExpansionSize[] opcodeSizes = sizesAfter(iterations);
+		for (byte command : seedCommands) {
+			size.add(opcodeSizes[command & 0xff]);
+		}
+		return size;
+	}
+	
+	private ExpansionSize[] sizesAfter(int generations) {
+		if (sizes == null || sizes.length <= generations) {
+			ExpansionSize[][] newSizes = new ExpansionSize[generations + 1][];
+			int known = 0;
+			if (sizes != null) {
+				known = sizes.length;
+				System.arraycopy(sizes, 0, newSizes, 0, known);
+			}
+			
+			for (int n = known; n <= generations; n++) {
+				newSizes[n] = new ExpansionSize[functionTable.length];
+				for (int opcode = 0; opcode < functionTable.length; opcode++) {
+					ExpansionSize size = new ExpansionSize();
+					Function function = functionTable[opcode];
+					
+					if (function != null && n > 0 && !function.alwaysBase) {
+						// One generation less of everything in the body
+						for (byte command : function.body) {
+							size.add(newSizes[n - 1][command & 0xff]);
+						}
+					} else {
+						size.commands = 1;
+						switch (opcode) {
+						case TURN_LEFT:
+						case TURN_RIGHT:
+							size.turns = 1;
+							break;
+						case BRANCH_START:
+						case BRANCH_END:
+							size.branches = 1;
+							break;
+						default:
+							size.moves = 1;
+							break;
+						}
+					}
+					newSizes[n][opcode] = size;
+				}
+			}
+			sizes = newSizes;
+		}
+		return sizes[generations];
+	}
 	
 	public void produceCommands(int iterations) {
-		Command[] seedCommands = readCommands(seed);
-		for (int i = 0; i < seedCommands.length; i++) {
-			tmpCommands[i] = seedCommands[i];
+		produceCommands(iterations, 1);
+	}
+	
+	/*
+	 * As above, but big generations are split into chunks that are
+	 * rewritten by the given number of threads at once.
+	 */
+	public void produceCommands(int iterations, int threads) {
+		produceCommands(iterations, threads, Long.MAX_VALUE);
+	}
+	
+	/*
+	 * Produce as many of this LSystem's iterations as fit in the budget.
+	 * The depth is first cut down to the deepest whose predicted size fits,
+	 * then generations are expanded until the next one would run past the
+	 * time allowed. Afterwards this LSystem is as deep as the commands
+	 * that were actually produced, which is returned.
+	 */
+	public int produceCommands(Budget budget, int threads) {
+		limitIterations(Math.min(Math.min(budget.maxCommands, budget.maxBytes / 2), MAX_PRODUCED_COMMANDS));
+		int produced = produceCommands(iterations, threads, budget.maxMillis);
+		iterations = produced;
+		bounds = null;
+		return produced;
+	}
+	
+	private int produceCommands(int iterations, int threads, long maxMillis) {
+		long finalSize = predictSize(iterations).commands;
+		if (finalSize > MAX_PRODUCED_COMMANDS) {
+			throw new IllegalStateException("Expansion of " + finalSize + " commands is too large to produce");
+		}
+		
+		// Every generation is at least as long as the one before it, so
+		// without a time limit both buffers can be allocated once at exactly
+		// the final size. With one, they only grow to the next generation's
+		// size until it looks like all of them will fit in the time, so
+		// stopping early doesn't leave buffers sized for the full depth.
+		boolean timeLimited = (maxMillis != Long.MAX_VALUE);
+		boolean allocatedFinalSize = !timeLimited;
+		long startTime = System.nanoTime();
+		
+		int initialSize = timeLimited ? seedCommands.length : (int) finalSize;
+		srcCommands = new byte[initialSize];
+		System.arraycopy(seedCommands, 0, srcCommands, 0, seedCommands.length);
+		srcCommandsContSize = seedCommands.length;
+		dstCommands = new byte[initialSize];
+		dstCommandsContSize = 0;
+		
+		ExecutorService executor = null;
+		if (threads > 1) {
+			executor = Executors.newFixedThreadPool(threads);
+		}
+		
+		int produced = 0;
+		long written = 0;
+		long expandingTime = 0;
+		try {
+			// The last generation would just turn each function into its
+			// own opcode, which is already what it means fully expanded.
+			while (produced < iterations) {
+				long nextSize = predictSize(produced + 1).commands;
+				if (timeLimited) {
+					// Guess how long generations will take from how fast the
+					// ones so far went. Until one has been timed, only stop
+					// if the time has already run out.
+					double millisPerCommand = (written > 0) ? expandingTime / (double) written / 1000000.0 : 0.0;
+					double elapsedMillis = (System.nanoTime() - startTime) / 1000000.0;
+					if (elapsedMillis + millisPerCommand * nextSize > maxMillis) {
+						break;
+					}
+					
+					if (!allocatedFinalSize && written > 0) {
+						long remaining = 0;
+						for (int n = produced + 1; n <= iterations; n++) {
+							remaining += predictSize(n).commands;
+						}
+						allocatedFinalSize = (elapsedMillis + millisPerCommand * remaining <= maxMillis);
+					}
+					growCommandBuffers(allocatedFinalSize ? finalSize : nextSize);
+				}
+				
+				long expandStartTime = System.nanoTime();
+				Tracing.begin("expand " + (produced + 1));
+				try {
+					if (executor != null && srcCommandsContSize >= MIN_PARALLEL_COMMANDS) {
+						expandInParallel(executor, threads);
+					} else {
+						expand();
+					}
+				} finally {
+					Tracing.end();
+				}
+				long expandTime = System.nanoTime() - expandStartTime;
+				expandingTime += expandTime;
+				produced++;
+				Metrics.histogram(Metrics.EXPAND_GENERATION + produced).record(expandTime);
+				written += srcCommandsContSize;
+			}
+		} finally {
+			if (executor != null) {
+				executor.shutdown();
+			}
+		}
+		
+		if (srcCommands.length != srcCommandsContSize) {
+			// Stopped early, so the buffer is bigger than this generation
+			byte[] exactCommands = new byte[srcCommandsContSize];
+			System.arraycopy(srcCommands, 0, exactCommands, 0, srcCommandsContSize);
+			srcCommands = exactCommands;
+		}
+		saveTemporaryCommands();
+		commandsIterations = produced;
+		return produced;
+	}
+	
+	/*
+	 * Make sure the target buffer can hold a generation of the given size.
+	 * The source only has to once it's swapped round to be the target.
+	 */
+	private void growCommandBuffers(long size) {
+		if (dstCommands.length < size) {
+			dstCommands = new byte[(int) size];
+		}
+	}
+	
+	/*
+	 * Cut the number of iterations down to the deepest whose predicted size
+	 * fits in the budget's commands and bytes, and return it. Producing the
+	 * commands takes two buffers of a byte per command, while a cursor needs
+	 * next to nothing, so only ask for bytes if you're going to produce them.
+	 */
+	public int limitIterations(Budget budget) {
+		return limitIterations(Math.min(budget.maxCommands, budget.maxBytes / 2));
+	}
+	
+	/*
+	 * Cut the number of iterations down to the deepest that can be laid
+	 * out into vertices in the given number of bytes, and return it.
+	 */
+	public int limitVertexIterations(long maxBytes) {
+		while (iterations > 0) {
+			if (Turtle.VertexSink.maxBytes(predictSize(iterations)) <= maxBytes) {
+				break;
+			}
+			iterations--;
+			bounds = null;
+		}
+		return iterations;
+	}
+	
+	private int limitIterations(long maxCommands) {
+		while (iterations > 0) {
+			if (predictSize(iterations).commands <= maxCommands) {
+				break;
+			}
+			iterations--;
+			bounds = null;
+		}
+		return iterations;
+	}
+	
+	/*
+	 * Go one generation deeper than the commands produced last time, by
+	 * rewriting them once more rather than starting again from the start
+	 * state. Produces the commands first if that hasn't been done yet.
+	 * Afterwards this LSystem is one iteration deeper, for cursors and
+	 * bounds as well.
+	 */
+	public void advance() {
+		if (commands == null) {
+			produceCommands();
+		}
+		
+		long startTime = System.nanoTime();
+		
+		int generation = commandsIterations + 1;
+		long newSize = predictSize(generation).commands;
+		if (newSize > MAX_PRODUCED_COMMANDS) {
+			throw new IllegalStateException("Expansion of " + newSize + " commands is too large to produce");
+		}
+		
+		srcCommands = commands;
+		srcCommandsContSize = commands.length;
+		dstCommands = new byte[(int) newSize];
+		dstCommandsContSize = 0;
+		
+		// Let the old generation go as soon as the new one is done
+		commands = null;
+		Tracing.begin("expand " + generation);
+		try {
+			expand();
+		} finally {
+			Tracing.end();
 		}
-		tmpCommandsContSize = seedCommands.length;
-		expand(iterations);
 		saveTemporaryCommands();
+		commandsIterations = generation;
+		
+		iterations = generation;
+		bounds = null;
+		
+		long advanceTime = System.nanoTime() - startTime;
+		Metrics.histogram(Metrics.EXPAND_GENERATION + generation).record(advanceTime);
+		Logging.d(Logging.TAG,
+				String.format("Took %.4fs to advance LSystem to %d iterations", advanceTime/1e9, generation));
 	}
 	
-	private Command[] fetchFromFunctionStore(String name, int n) {
-		Function function = functionStore.get(name);
+	/*
+	 * Rewrite one generation, copying each replacement straight into place
+	 * in the target buffer.
+	 */
+	private void expand() {
+		dstCommandsContSize = expandRange(0, srcCommandsContSize, 0);
+		swapCommandBuffers();
+	}
+	
+	/*
+	 * Rewrite one generation in chunks. First every chunk works out how long
+	 * it will be, then a running total of those gives each chunk the offset
+	 * it writes to, so that they can all write into the target at once.
+	 */
+	private void expandInParallel(ExecutorService executor, int threads) {
+		int chunks = threads * CHUNKS_PER_THREAD;
+		int chunkSize = (srcCommandsContSize + chunks - 1) / chunks;
 		
-		if (n == 0 || function.alwaysBase) {
-			return function.baseCommand;
+		final int[] chunkStarts = new int[chunks];
+		final int[] chunkEnds = new int[chunks];
+		for (int c = 0; c < chunks; c++) {
+			chunkStarts[c] = Math.min(c * chunkSize, srcCommandsContSize);
+			chunkEnds[c] = Math.min(chunkStarts[c] + chunkSize, srcCommandsContSize);
 		}
 		
-		return function.body;
+		List<Callable<Integer>> measures = new ArrayList<Callable<Integer>>(chunks);
+		for (int c = 0; c < chunks; c++) {
+			final int chunk = c;
+			measures.add(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					return measureRange(chunkStarts[chunk], chunkEnds[chunk]);
+				}
+			});
+		}
+		List<Future<Integer>> lengths = invokeAll(executor, measures);
+		
+		final int[] chunkOffsets = new int[chunks];
+		int offset = 0;
+		for (int c = 0; c < chunks; c++) {
+			chunkOffsets[c] = offset;
+			offset += getResult(lengths.get(c));
+		}
+		
+		List<Callable<Integer>> writes = new ArrayList<Callable<Integer>>(chunks);
+		for (int c = 0; c < chunks; c++) {
+			final int chunk = c;
+			writes.add(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					return expandRange(chunkStarts[chunk], chunkEnds[chunk], chunkOffsets[chunk]);
+				}
+			});
+		}
+		for (Future<Integer> write : invokeAll(executor, writes)) {
+			getResult(write);
+		}
+		
+		dstCommandsContSize = offset;
+		swapCommandBuffers();
 	}
 	
-	private void expand(int n) {
-		int i = 0;
+	private int measureRange(int from, int to) {
+		int length = 0;
+		for (int i = from; i < to; i++) {
+			Function function = functionTable[srcCommands[i] & 0xff];
+			if (function != null && !function.alwaysBase) {
+				length += function.body.length;
+			} else {
+				length++;
+			}
+		}
+		return length;
+	}
+	
+	/*
+	 * Rewrite srcCommands[from, to) into dstCommands starting at offset, and
+	 * return where it finished.
+	 */
+	private int expandRange(int from, int to, int offset) {
+		int j = offset;
+		for (int i = from; i < to; i++) {
+			byte command = srcCommands[i];
+			Function function = functionTable[command & 0xff];
+			if (function != null && !function.alwaysBase) {
+				System.arraycopy(function.body, 0, dstCommands, j, function.body.length);
+				j += function.body.length;
+			} else {
+				dstCommands[j++] = command;
+			}
+		}
+		return j;
+	}
+	
+	private void swapCommandBuffers() {
+		// Swap, so this generation becomes the source of the next one
+		byte[] oldCommands = srcCommands;
+		srcCommands = dstCommands;
+		srcCommandsContSize = dstCommandsContSize;
+		dstCommands = oldCommands;
+		dstCommandsContSize = 0;
+	}
+	
+	private static <T> List<Future<T>> invokeAll(ExecutorService executor, List<Callable<T>> tasks) {
+		try {
+			return executor.invokeAll(tasks);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while expanding", e);
+		}
+	}
+	
+	private static <T> T getResult(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while expanding", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Failed to expand", e.getCause());
+		}
+	}
+	
+	private void saveTemporaryCommands() {
+		// The buffer holding the last generation is exactly the right size
+		commands = srcCommands;
 		
-		while (i < tmpCommandsContSize) {
-			
-			Command command = tmpCommands[i];
-			
-			if (command instanceof Expand) {
-				Command[] newCommands = fetchFromFunctionStore(((Expand)command).name, n);
-				insertNewCommands(i, newCommands);
-				i += newCommands.length - 1;
+		// Only the result is kept around
+		srcCommands = null;
+		dstCommands = null;
+	}
+	
+	private void prepareHeadings() {
+		headings = 0;
+		if (turnAngle != 0.0f) {
+			long steps = Math.round(360.0 / Math.abs(turnAngle));
+			if (steps > 0 && Math.abs(steps * Math.abs(turnAngle) - 360.0) < 0.001) {
+				headings = (int) steps;
 			}
-			
-			i++;
 		}
 		
-		if (n > 0) {
-			expand(n-1);
+		headingX = new double[headings];
+		headingY = new double[headings];
+		for (int h = 0; h < headings; h++) {
+			double radians = Math.toRadians(h * turnAngle);
+			headingX[h] = Math.cos(radians);
+			headingY[h] = Math.sin(radians);
+		}
+		
+		// Transforms can only be composed if no body pops a branch that
+		// something outside of it pushed.
+		balancedBranches = isBalanced(seedCommands);
+		for (int opcode = FIRST_FUNCTION; opcode < functionTable.length; opcode++) {
+			balancedBranches &= isBalanced(functionTable[opcode].body);
+		}
+	}
+	
+	private static boolean isBalanced(byte[] body) {
+		int depth = 0;
+		for (byte command : body) {
+			if (command == BRANCH_START) {
+				depth++;
+			} else if (command == BRANCH_END) {
+				depth--;
+				if (depth < 0) {
+					return false;
+				}
+			}
 		}
+		return depth == 0;
 	}
 	
-	private void insertNewCommands(int insertionPoint, Command[] newCommands) {
-		if ((tmpCommandsContSize + newCommands.length - 1) > tmpCommands.length) {
-			Log.d(LSystemDrawingService.TAG, "Expanding temporary command container... " + tmpCommands.length*2);
-			Command[] largerTmpCommands = new Command[tmpCommands.length*2];
-			for (int i = 0; i < tmpCommandsContSize; i++) {
-				largerTmpCommands[i] = tmpCommands[i];
+	/*
+	 * Work out the bounding box of the whole drawing. Where possible this is
+	 * built up from the memoised transforms, costing iterations * headings *
+	 * (total length of the function bodies), otherwise it falls back to
+	 * walking every command. Either way the answer is kept.
+	 */
+	public Bounds computeBounds() {
+		if (bounds == null) {
+			if (headings > 0 && balancedBranches) {
+				bounds = computeBoundsFromTransforms();
+			} else {
+				bounds = computeBoundsByWalking();
 			}
-			tmpCommands = largerTmpCommands;
 		}
+		return bounds;
+	}
+	
+	private Bounds computeBoundsFromTransforms() {
+		Transform seedTransform = new Transform();
+		compose(seedTransform, seedCommands, transformsAfter(iterations), 0);
 		
-		// Shunt everything after the expansion forward
-		for (int i = tmpCommandsContSize-1; i > insertionPoint; i--) {
-			tmpCommands[i + newCommands.length - 1] = tmpCommands[i];
+		Bounds b = new Bounds();
+		b.minX = (float) seedTransform.minX;
+		b.minY = (float) seedTransform.minY;
+		b.maxX = (float) seedTransform.maxX;
+		b.maxY = (float) seedTransform.maxY;
+		return b;
+	}
+	
+	private Transform[] transformsAfter(int generations) {
+		if (transforms == null || transforms.length <= generations) {
+			Transform[][] newTransforms = new Transform[generations + 1][];
+			int known = 0;
+			if (transforms != null) {
+				known = transforms.length;
+				System.arraycopy(transforms, 0, newTransforms, 0, known);
+			}
+			
+			for (int n = known; n <= generations; n++) {
+				newTransforms[n] = new Transform[functionTable.length * headings];
+				for (int opcode = 0; opcode < functionTable.length; opcode++) {
+					Function function = functionTable[opcode];
+					for (int h = 0; h < headings; h++) {
+						Transform t = new Transform();
+						
+						if (function != null && n > 0 && !function.alwaysBase) {
+							// One generation less of everything in the body
+							compose(t, function.body, newTransforms[n - 1], h);
+						} else if (opcode == TURN_LEFT) {
+							t.turns = 1;
+						} else if (opcode == TURN_RIGHT) {
+							t.turns = headings - 1;
+						} else if (function != null && function.distance > 0.0f) {
+							t.dx = function.distance * headingX[h];
+							t.dy = function.distance * headingY[h];
+							t.minX = Math.min(0.0, t.dx);
+							t.minY = Math.min(0.0, t.dy);
+							t.maxX = Math.max(0.0, t.dx);
+							t.maxY = Math.max(0.0, t.dy);
+						}
+						newTransforms[n][opcode * headings + h] = t;
+					}
+				}
+			}
+			transforms = newTransforms;
 		}
-				
-		// Expand
-		for (int i = 0; i < newCommands.length; i++) {
-			tmpCommands[insertionPoint + i] = newCommands[i];
+		return transforms[generations];
+	}
+	
+	/*
+	 * Chain together the transforms of everything in a body, starting
+	 * with the given heading.
+	 */
+	private void compose(Transform into, byte[] body, Transform[] inner, int heading) {
+		double x = 0.0;
+		double y = 0.0;
+		int turns = 0;
+		
+		double[] stackX = new double[body.length];
+		double[] stackY = new double[body.length];
+		int[] stackTurns = new int[body.length];
+		int top = 0;
+		
+		for (byte command : body) {
+			switch (command) {
+			case BRANCH_START:
+				stackX[top] = x;
+				stackY[top] = y;
+				stackTurns[top] = turns;
+				top++;
+				break;
+			case BRANCH_END:
+				top--;
+				x = stackX[top];
+				y = stackY[top];
+				turns = stackTurns[top];
+				break;
+			default:
+				Transform t = inner[(command & 0xff) * headings + (heading + turns) % headings];
+				into.minX = Math.min(into.minX, x + t.minX);
+				into.minY = Math.min(into.minY, y + t.minY);
+				into.maxX = Math.max(into.maxX, x + t.maxX);
+				into.maxY = Math.max(into.maxY, y + t.maxY);
+				x += t.dx;
+				y += t.dy;
+				turns = (turns + t.turns) % headings;
+				break;
+			}
 		}
 		
-		tmpCommandsContSize += (newCommands.length - 1);
+		into.dx = x;
+		into.dy = y;
+		into.turns = turns;
 	}
 	
-	private void saveTemporaryCommands() {
-		commands = new Command[tmpCommandsContSize];
-		for (int i = 0; i < tmpCommandsContSize; i++) {
-			commands[i] = tmpCommands[i];
+	/*
+	 * Run every command through a turtle, the slow way.
+	 */
+	private Bounds computeBoundsByWalking() {
+		Turtle.BoundsSink sink = new Turtle.BoundsSink();
+		Turtle.walk(this, cursor(), sink);
+		return sink.bounds;
+	}
+	
+	public Cursor cursor() {
+		return new Cursor();
+	}
+	
+	/*
+	 * Fetch the command at any index of the expansion, without producing
+	 * it. Takes time proportional to iterations * log(body length).
+	 */
+	public int commandAt(long index) {
+		Cursor c = new Cursor();
+		c.seek(index);
+		return c.next();
+	}
+	
+	/*
+	 * Where each command of each function body starts within the body's
+	 * expansion, when the body is expanded n more times, so
+	 * bodyOffsets[n][opcode][i]. The last entry is the length of the whole
+	 * expansion. Filled in as deep as has been asked for, like sizes.
+	 */
+	private long[][] bodyOffsetsAfter(int generations) {
+		if (bodyOffsets == null || bodyOffsets.length <= generations) {
+			long[][][] newBodyOffsets = new long[generations + 1][][];
+			int known = 0;
+			if (bodyOffsets != null) {
+				known = bodyOffsets.length;
+				System.arraycopy(bodyOffsets, 0, newBodyOffsets, 0, known);
+			}
+			
+			for (int n = known; n <= generations; n++) {
+				newBodyOffsets[n] = new long[functionTable.length][];
+				for (int opcode = FIRST_FUNCTION; opcode < functionTable.length; opcode++) {
+					newBodyOffsets[n][opcode] = offsetsOf(functionTable[opcode].body, sizesAfter(n));
+				}
+			}
+			bodyOffsets = newBodyOffsets;
 		}
+		return bodyOffsets[generations];
 	}
-
+	
+	private static long[] offsetsOf(byte[] body, ExpansionSize[] opcodeSizes) {
+		long[] offsets = new long[body.length + 1];
+		for (int i = 0; i < body.length; i++) {
+			offsets[i + 1] = ExpansionSize.saturatingAdd(offsets[i], opcodeSizes[body[i] & 0xff].commands);
+		}
+		return offsets;
+	}
+	
+	/*
+	 * Streams the fully expanded commands one at a time, depth first.
+	 * Rather than rewriting whole generations, it keeps a stack of frames,
+	 * one for each function body it is part way through, along with how
+	 * many more times the symbols in that body must be expanded. So it only
+	 * needs memory proportional to iterations * body length, not to the
+	 * length of the output.
+	 */
+	public class Cursor implements CommandCursor {
+		private int depth;
+		private byte[][] frameBodies;
+		private int[] framePositions;
+		private int[] frameDepths;
+		private int top;
+		private long commandIndex;
+		
+		private Cursor() {
+			// The seed plus one frame for each level of expansion
+			depth = iterations;
+			frameBodies = new byte[depth + 1][];
+			framePositions = new int[depth + 1];
+			frameDepths = new int[depth + 1];
+			reset();
+		}
+		
+		@Override
+		public void reset() {
+			top = 0;
+			frameBodies[0] = seedCommands;
+			framePositions[0] = 0;
+			frameDepths[0] = depth;
+			commandIndex = 0;
+		}
+		
+		@Override
+		public long getIndex() {
+			return commandIndex;
+		}
+		
+		/*
+		 * Jump to any index, so that next() returns the command there. Rather
+		 * than walking, this goes straight down through the frames, picking
+		 * the command in each body whose expansion holds the index from the
+		 * table of body offsets. Seeking past the end leaves the cursor at END.
+		 */
+		@Override
+		public void seek(long index) {
+			if (index < 0) {
+				throw new IllegalArgumentException("Can't seek to a negative index: " + index);
+			}
+			reset();
+			
+			long[] offsets = offsetsOf(seedCommands, sizesAfter(depth));
+			if (index >= offsets[seedCommands.length]) {
+				framePositions[0] = seedCommands.length;
+				commandIndex = offsets[seedCommands.length];
+				return;
+			}
+			
+			long remaining = index;
+			while (true) {
+				byte[] body = frameBodies[top];
+				int position = findOffset(offsets, body.length, remaining);
+				remaining -= offsets[position];
+				
+				Function function = functionTable[body[position] & 0xff];
+				int frameDepth = frameDepths[top];
+				if (function == null || frameDepth == 0 || function.alwaysBase) {
+					// This is the command itself
+					framePositions[top] = position;
+					break;
+				}
+				
+				// Descend into the body of the function
+				framePositions[top] = position + 1;
+				top++;
+				frameBodies[top] = function.body;
+				framePositions[top] = 0;
+				frameDepths[top] = frameDepth - 1;
+				offsets = bodyOffsetsAfter(frameDepth - 1)[function.opcode];
+			}
+			commandIndex = index;
+		}
+		
+		/*
+		 * The last position in the body whose offset is no more than the index.
+		 */
+		private int findOffset(long[] offsets, int length, long index) {
+			int low = 0;
+			int high = length - 1;
+			while (low < high) {
+				int mid = (low + high + 1) >>> 1;
+				if (offsets[mid] <= index) {
+					low = mid;
+				} else {
+					high = mid - 1;
+				}
+			}
+			return low;
+		}
+		
+		/*
+		 * Returns the next opcode, which will be a turn, branch or a
+		 * function to move by, or END once the whole L-System has been walked.
+		 */
+		@Override
+		public int next() {
+			while (top >= 0) {
+				byte[] body = frameBodies[top];
+				int position = framePositions[top];
+				
+				if (position == body.length) {
+					// Finished with this body, return to the one that expanded it
+					frameBodies[top] = null;
+					top--;
+					continue;
+				}
+				framePositions[top] = position + 1;
+				
+				int command = body[position] & 0xff;
+				Function function = functionTable[command];
+				if (function == null || frameDepths[top] == 0 || function.alwaysBase) {
+					commandIndex++;
+					return command;
+				}
+				
+				// Descend into the body of the function
+				top++;
+				frameBodies[top] = function.body;
+				framePositions[top] = 0;
+				frameDepths[top] = frameDepths[top - 1] - 1;
+			}
+			return END;
+		}
+	}
+	
 	public void printCommands() {
-		for (Command c : commands) {
-			c.print();
+		for (byte c : commands) {
+			print(c & 0xff);
 		}
 	}
 }
@@ -0,0 +1,209 @@
+package eu.whrl.lsystemwallpaper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/*
+ * Keeps laid out L-Systems on disk, so that they only have to be expanded
+ * once, however many times the engine is created. Entries are keyed by a
+ * hash of everything in the description that affects the expansion, and
+ * each file looks like:
+ * 
+ *   int    magic
+ *   int    format version
+ *   int    iterations actually expanded
+ *   float  bounds minX, minY, maxX, maxY
+ *   long   number of commands
+ *   int    number of vertex floats
+ *   float[] the vertices, before being scaled to the screen
+ * 
+ * Only the vertices are needed to draw, so the commands themselves aren't
+ * kept. Laying out streams them straight from the L-System's cursor.
+ */
+public class LSystemCache {
+	
+	private static final int MAGIC = 0x4c535953;
+	private static final int VERSION = 3;
+	private static final int HEADER_SIZE = 4 + 4 + 4 + (4 * 4) + 8 + 4;
+	
+	public static class Entry {
+		public int iterations;
+		public LSystem.Bounds bounds;
+		public VertexBuffer vertices;
+		public boolean wasCached;
+	}
+	
+	private File dir;
+	
+	public LSystemCache(File dir) {
+		this.dir = dir;
+	}
+	
+	/*
+	 * Fetch the entry for an L-System, expanding it and storing it first if
+	 * it isn't there yet. The L-System must have been made from the
+	 * description, with its iterations already limited as they will be drawn.
+	 */
+	public Entry loadOrStore(LSystemDescription d, LSystem lsystem) throws IOException {
+		Entry entry = load(d, lsystem);
+		if (entry == null) {
+			Metrics.counter(Metrics.CACHE_MISS).increment();
+			entry = store(d, lsystem);
+		} else {
+			Metrics.counter(Metrics.CACHE_HIT).increment();
+		}
+		return entry;
+	}
+	
+	public Entry load(LSystemDescription d, LSystem lsystem) {
+		File file = new File(dir, keyOf(d) + ".bin");
+		if (!file.exists()) {
+			return null;
+		}
+		
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				if (raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+					throw new IOException("Not a cache file of the current version");
+				}
+				
+				Entry entry = new Entry();
+				entry.iterations = raf.readInt();
+				entry.bounds = new LSystem.Bounds();
+				entry.bounds.minX = raf.readFloat();
+				entry.bounds.minY = raf.readFloat();
+				entry.bounds.maxX = raf.readFloat();
+				entry.bounds.maxY = raf.readFloat();
+				long size = raf.readLong();
+				int vertexLength = raf.readInt();
+				
+				// It may have been expanded to a different depth, if the
+				// limits on drawing have changed since
+				if (entry.iterations != lsystem.getIterations()
+						|| size != lsystem.predictSize().commands
+						|| raf.length() != HEADER_SIZE + (4L * vertexLength)) {
+					throw new IOException("Cache file doesn't match the LSystem");
+				}
+				
+				FileChannel channel = raf.getChannel();
+				
+				// The vertices get scaled for the screen in place, so they're
+				// copied out onto the heap.
+				float[] vertices = new float[vertexLength];
+				channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, 4L * vertexLength)
+						.asFloatBuffer().get(vertices);
+				entry.vertices = new VertexBuffer(vertices, vertexLength);
+				entry.wasCached = true;
+				return entry;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			// Whatever's wrong with it, it'll be replaced
+			file.delete();
+			return null;
+		}
+	}
+	
+	public Entry store(LSystemDescription d, LSystem lsystem) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Couldn't create cache directory " + dir);
+		}
+		
+		String key = keyOf(d);
+		Entry entry;
+		long size = lsystem.predictSize().commands;
+		
+		// Write to a file of our own first, so nobody else ever sees it half
+		// written, then move it into place.
+		File tmpFile = File.createTempFile(key, ".tmp", dir);
+		try {
+			RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+			try {
+				FileChannel channel = raf.getChannel();
+				entry = layOut(lsystem, lsystem.cursor());
+				MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE,
+						HEADER_SIZE, 4L * entry.vertices.length);
+				mapped.asFloatBuffer().put(entry.vertices.vertices, 0, entry.vertices.length);
+				mapped.force();
+				
+				// Only write the header once everything else is there
+				raf.seek(0);
+				raf.writeInt(MAGIC);
+				raf.writeInt(VERSION);
+				raf.writeInt(entry.iterations);
+				raf.writeFloat(entry.bounds.minX);
+				raf.writeFloat(entry.bounds.minY);
+				raf.writeFloat(entry.bounds.maxX);
+				raf.writeFloat(entry.bounds.maxY);
+				raf.writeLong(size);
+				raf.writeInt(entry.vertices.length);
+			} finally {
+				raf.close();
+			}
+			
+			if (!tmpFile.renameTo(new File(dir, key + ".bin"))) {
+				throw new IOException("Couldn't move cache file into place");
+			}
+		} finally {
+			tmpFile.delete();
+		}
+		
+		return entry;
+	}
+	
+	/*
+	 * Work out the bounds and vertices of an L-System in one walk over its
+	 * commands, for an entry that isn't stored anywhere (yet).
+	 */
+	public static Entry layOut(LSystem lsystem, CommandCursor cursor) {
+		long startTime = System.nanoTime();
+		Turtle.BoundsSink bounds = new Turtle.BoundsSink();
+		Turtle.VertexSink vertices = new Turtle.VertexSink(lsystem);
+		Turtle.StatsSink stats = new Turtle.StatsSink();
+		Turtle.walk(lsystem, cursor, bounds, vertices, stats);
+		Metrics.histogram(Metrics.EXPAND_STREAMED).recordSince(startTime);
+		Logging.d(Logging.TAG, "Laid out LSystem: " + stats);
+		
+		Entry entry = new Entry();
+		entry.iterations = lsystem.getIterations();
+		entry.bounds = bounds.bounds;
+		entry.vertices = vertices.getVertexBuffer();
+		entry.wasCached = false;
+		return entry;
+	}
+	
+	/*
+	 * A hash of the functions, start state, iterations and angle. The name
+	 * is left out, as it doesn't change what gets drawn.
+	 */
+	public static String keyOf(LSystemDescription d) {
+		StringBuilder description = new StringBuilder();
+		for (String function : d.functions) {
+			description.append(function).append('\n');
+		}
+		description.append(d.startState).append('\n');
+		description.append(d.iterations).append('\n');
+		description.append(Float.floatToIntBits(d.turnAngle)).append('\n');
+		
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] hash = digest.digest(description.toString().getBytes("UTF-8"));
+			StringBuilder key = new StringBuilder();
+			for (byte b : hash) {
+				key.append(String.format("%02x", b & 0xff));
+			}
+			return key.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("No SHA-1", e);
+		} catch (IOException e) {
+			throw new IllegalStateException("No UTF-8", e);
+		}
+	}
+}
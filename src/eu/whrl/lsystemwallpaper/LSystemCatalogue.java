@@ -2,6 +2,8 @@ package eu.whrl.lsystemwallpaper;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 public class LSystemCatalogue {
 	private static Map<String, LSystemDescription> catalogue = new HashMap<String, LSystemDescription>();
@@ -143,6 +145,10 @@ public class LSystemCatalogue {
 		return null;
 	}
 	
+	public static Set<String> names() {
+		return new TreeSet<String>(catalogue.keySet());
+	}
+	
 	public static boolean add(LSystemDescription lsDesc) {
 		if (verify(lsDesc)) {
 			catalogue.put(lsDesc.name, lsDesc);
@@ -1,13 +1,22 @@
 package eu.whrl.lsystemwallpaper;
 
-import java.util.LinkedList;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 import android.content.SharedPreferences;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
 import android.os.AsyncTask;
 import android.os.Handler;
 import android.service.wallpaper.WallpaperService;
@@ -17,13 +26,61 @@ import android.view.SurfaceHolder;
 
 public class LSystemDrawingService extends WallpaperService {
 	
-	public static final String TAG = "LSystemLW";
+	public static final String TAG = Logging.TAG;
+	
+	/*
+	 * The biggest expansion we're prepared to lay out and draw. L-Systems
+	 * predicted to be bigger than this, or whose vertices would take more
+	 * than MAX_VERTEX_BYTES to lay out, are drawn with fewer iterations.
+	 * The commands are only ever streamed, never produced, so the budget
+	 * has no limit on their bytes or on the time to produce them, which is
+	 * all its time limit covers. Laying out is bounded by its size instead.
+	 */
+	public static final long MAX_COMMANDS = 1024 * 1024;
+	public static final long MAX_VERTEX_BYTES = 16L * 1024 * 1024;
+	private static final LSystem.Budget drawingBudget = 
+			new LSystem.Budget(MAX_COMMANDS, Long.MAX_VALUE, Long.MAX_VALUE);
+	
+	private LSystemCache cache;
+	
+	private synchronized LSystemCache getCache() {
+		if (cache == null) {
+			cache = new LSystemCache(new File(getCacheDir(), "lsystems"));
+		}
+		return cache;
+	}
+	
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		AndroidPlatform.install();
+	}
 	
 	@Override
 	public Engine onCreateEngine() {
 		return new LSystemDrawingEngine();
 	}
 	
+	/*
+	 * "adb shell dumpsys activity service LSystemDrawingService" prints
+	 * the metrics gathered so far. With "trace" on the end it prints the
+	 * recent trace sections instead, as Chrome trace JSON.
+	 */
+	@Override
+	protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+		if (args != null && args.length > 0 && args[0].equals("trace")) {
+			try {
+				Tracing.writeChromeTrace(writer);
+			} catch (IOException e) {
+				writer.println("Couldn't write trace: " + e);
+			}
+			return;
+		}
+		super.dump(fd, writer, args);
+		writer.println("L-System metrics:");
+		Metrics.dump("  ", writer);
+	}
+	
 	public enum DrawingState {
 		PREPARE,
 		ERROR,
@@ -31,29 +88,95 @@ public class LSystemDrawingService extends WallpaperService {
 		FADE
 	}
 	
+	/*
+	 * How a finished drawing goes away. A crossfade starts drawing again
+	 * straight away, on top of it as it fades, and is also used when the
+	 * L-System is changed.
+	 */
+	public enum Transition {
+		FADE,
+		CROSSFADE,
+		DISSOLVE,
+		ZOOM_OUT;
+		
+		public static Transition fromPreference(String value) {
+			if (value.equals("crossfade")) {
+				return CROSSFADE;
+			} else if (value.equals("dissolve")) {
+				return DISSOLVE;
+			} else if (value.equals("zoomout")) {
+				return ZOOM_OUT;
+			}
+			return FADE;
+		}
+	}
+	
+	// How long a transition takes
+	private static final long FADE_NANOS = 2000L * 1000 * 1000;
+	
+	// The most lines added in one frame when catching up, so that a long
+	// stall doesn't turn into another one.
+	private static final int MAX_LINES_PER_FRAME = 10000;
+	
+	// Size of the squares a dissolve takes away, in pixels
+	private static final int DISSOLVE_BLOCK_SIZE = 32;
+	
+	// A frame that takes longer than a 60Hz vsync to draw is late
+	private static final long FRAME_NANOS = 1000L * 1000 * 1000 / 60;
+	
+	// Where the debug overlay goes, and how its histogram is split up
+	private static final int HUD_LEFT = 20;
+	private static final int HUD_TOP = 80;
+	private static final int HUD_WIDTH = 420;
+	private static final int HUD_PADDING = 10;
+	private static final int HUD_LINE_HEIGHT = 30;
+	private static final int HUD_LINES = 4;
+	private static final int HUD_HISTOGRAM_HEIGHT = 60;
+	private static final int HUD_BUCKETS = 16;
+	private static final long HUD_BUCKET_NANOS = 2L * 1000 * 1000;
+	
 	private class LSystemDrawingEngine extends Engine 
 		implements SharedPreferences.OnSharedPreferenceChangeListener {
 		
 		private final Handler handler = new Handler();
-		private final Runnable drawRunner = new Runnable() {
+		private final FrameScheduler frameScheduler = FrameScheduler.create(handler, new FrameScheduler.Callback() {
 			@Override
-			public void run() {
-				draw();
+			public void onFrame(long frameTimeNanos) {
+				draw(frameTimeNanos);
 			}
-
-		};
+		});
 		
 		private boolean visible;
-
-		private LSystem lsystem;
-		private int currentCommand;
 		
-		private DrawingPosition drawPos;
-		private List<DrawingPosition> drawPosStack = new LinkedList<DrawingPosition>();
+		private LSystemCache.Entry cacheEntry;
 		
-		private DrawingPosition originDrawPos;
+		// Already scaled to the screen, and the line the head drew last.
+		private VertexBuffer vertices;
+		private final LineStepper lines = new LineStepper();
 		
+		// Lines are drawn at a steady rate from when drawing started, however
+		// often frames actually come. The start is -1 until the first frame,
+		// and is moved along if the speed changes.
+		private long drawStartTime;
+		private long linesAtStart;
+		private long linesDrawn;
+		private int totalLines;
+		private double linesPerSecond;
+		
+		// Only the part of the screen that's changed is redrawn, unless
+		// something's happened that changes all of it.
+		private final Rect dirtyRect = new Rect();
+		private boolean fullFrame;
+		private boolean haveDirtyLines;
+		private float dirtyMinX;
+		private float dirtyMinY;
+		private float dirtyMaxX;
+		private float dirtyMaxY;
+		
+		// Paths are reused each time the L-System is drawn again, only the
+		// first tailLineCount of them are in use.
 		private List<Path> tailLines;
+		private int tailLineCount;
 		private Path currentTailLine;
 		
 		private DrawingState state;
@@ -62,81 +185,192 @@ public class LSystemDrawingService extends WallpaperService {
 		private Paint headPaint;
 		private int bgColor;
 		
+		// What's been drawn of the tail so far, so each frame only has to
+		// add the newest line to it.
+		private Bitmap tailBitmap;
+		private Canvas tailCanvas;
+		
+		// A finished drawing is swapped into here to fade it, leaving the
+		// tail bitmap free for drawing the next one.
+		private Bitmap spareBitmap;
+		private Canvas spareCanvas;
+		private Bitmap fadeBitmap;
+		private Canvas fadeCanvas;
+		private final TransitionClock fadeClock = new TransitionClock(FADE_NANOS);
+		private int dissolvedBlocks;
+		private final Paint fadePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+		private Transition transition;
+		
+		// The order a dissolve takes blocks away in, and how it does it
+		private int[] dissolveOrder;
+		private int dissolveColumns;
+		private final Paint dissolvePaint = new Paint();
+		
 		private int savedWidth;
-		private float scalingFactor;
+		private int savedHeight;
 		
 		private LSystemDescription lsDesc;
 		
 		private SharedPreferences preferences;
 		
-		private int refreshSpeed;
+		// The debug overlay, which is drawn over everything else
+		private boolean showHud;
+		private final FrameStats frameStats = new FrameStats(FRAME_NANOS);
+		// When the frame that's been scheduled should start, or -1 if it
+		// was asked for outside a frame, where there's nothing to go by
+		private long frameDueTime = -1;
+		private final Rect hudRect = new Rect(HUD_LEFT, HUD_TOP, HUD_LEFT + HUD_WIDTH,
+				HUD_TOP + (HUD_PADDING * 3) + (HUD_LINES * HUD_LINE_HEIGHT) + HUD_HISTOGRAM_HEIGHT);
+		private final int[] hudBuckets = new int[HUD_BUCKETS];
+		private final Paint hudPaint = new Paint();
+		private final Paint hudBackgroundPaint = new Paint();
+		private final Paint hudBarPaint = new Paint();
+		
+		// Either a number of lines a second, or a number of seconds to
+		// draw the whole thing in
+		private boolean completeInDuration;
+		private int speedPreference;
+		private int durationPreference;
+		
+		private long resetTime;
+		private boolean drawnFirstFrame;
 		
 		class LSystemGenerator extends AsyncTask<LSystemDescription,Void,LSystem> {
-
-			private long generateLSystemStartTime;
+			
+			private LSystemCache.Entry entry;
 			
 			@Override
 			protected LSystem doInBackground(LSystemDescription... params) {
 				if (params.length == 1) { 
 					LSystemDescription d = params[0];
-					generateLSystemStartTime = System.currentTimeMillis();
-					LSystem lsystem = new LSystem(d.iterations, 
-							d.turnAngle, 
-							d.startState, 
-							d.functions);
+					long generateStartTime = System.nanoTime();
+					LSystem lsystem;
+					try {
+						lsystem = new LSystem(d.iterations, 
+								d.turnAngle, 
+								d.startState, 
+								d.functions);
+					} catch (IllegalArgumentException e) {
+						Log.w(LSystemDrawingService.TAG, "Couldn't read LSystem " + d.name + ": " + e.getMessage());
+						return null;
+					}
+					lsystem.limitIterations(drawingBudget);
+					int iterations = lsystem.limitVertexIterations(MAX_VERTEX_BYTES);
+					if (iterations < d.iterations) {
+						Log.w(LSystemDrawingService.TAG,
+								String.format("LSystem %s is too big to draw with %d iterations, using %d", d.name, d.iterations, iterations));
+					}
+					try {
+						entry = getCache().loadOrStore(d, lsystem);
+					} catch (IOException e) {
+						Log.w(LSystemDrawingService.TAG, "Couldn't cache LSystem, laying it out without it", e);
+						entry = LSystemCache.layOut(lsystem, lsystem.cursor());
+					}
+					Metrics.histogram(Metrics.GENERATE).recordSince(generateStartTime);
 					return lsystem;
 				}
 				return null;
 			}
-
+			
 			@Override
 			protected void onPostExecute(LSystem l) {
 				if (l != null) {
-					lsystem = l;
-					long generateLSystemEndTime = System.currentTimeMillis();
-					Log.d(LSystemDrawingService.TAG,
-							String.format("Took %.4fs to generate LSystem", (generateLSystemEndTime - generateLSystemStartTime)/1000.0f));
-					long prepareForDrawingStartTime = System.currentTimeMillis();
+					cacheEntry = entry;
+					long prepareForDrawingStartTime = System.nanoTime();
 					prepareForDrawing();
-					long prepareForDrawingEndTime = System.currentTimeMillis();
-					Log.d(LSystemDrawingService.TAG,
-							String.format("Took %.4fs to prepare for drawing", (prepareForDrawingEndTime - prepareForDrawingStartTime)/1000.0f));
+					Metrics.histogram(Metrics.PREPARE).recordSince(prepareForDrawingStartTime);
 					state = DrawingState.DRAW;
 				} else {
 					state = DrawingState.ERROR;
 				}
+				requestFullFrame();
 			}
 		}
 		
 		public LSystemDrawingEngine() {
 			// Get our preferences, and make sure we know if anything changes.
 			preferences = LSystemDrawingService.this.getSharedPreferences(WallpaperPreferencesActivity.name, MODE_PRIVATE);
+			WallpaperPreferencesActivity.upgradePreferences(preferences);
             preferences.registerOnSharedPreferenceChangeListener(this);
 			
-            refreshSpeed = Integer.parseInt(preferences.getString(WallpaperPreferencesActivity.refreshSpeedKeyName, "200"));
+            dissolvePaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
+            
+            hudPaint.setAntiAlias(true);
+            hudPaint.setColor(Color.WHITE);
+            hudPaint.setTextSize(24f);
+            hudBackgroundPaint.setColor(0xc0000000);
+            hudBarPaint.setStyle(Paint.Style.FILL);
+            
+            readSpeedPreferences();
             
             // Call the real constructor
 			initOrReset();
+		}
+		
+		private void readSpeedPreferences() {
+			completeInDuration = preferences.getString(WallpaperPreferencesActivity.speedModeKeyName,
+					WallpaperPreferencesActivity.speedModeDefaultValue).equals("duration");
 			
-			// Set our drawing handler
-			handler.post(drawRunner);
+			speedPreference = readNumberPreference(WallpaperPreferencesActivity.speedKeyName,
+					WallpaperPreferencesActivity.speedDefaultValue);
+			durationPreference = readNumberPreference(WallpaperPreferencesActivity.durationKeyName,
+					WallpaperPreferencesActivity.durationDefaultValue);
+			updateLinesPerSecond();
+		}
+		
+		/*
+		 * A positive number from the preferences. Anything that won't parse,
+		 * like one too big for an int saved by an older version, gets the
+		 * default instead of stopping the wallpaper from starting.
+		 */
+		private int readNumberPreference(String key, String defaultValue) {
+			try {
+				return Math.max(1, Integer.parseInt(preferences.getString(key, defaultValue)));
+			} catch (NumberFormatException e) {
+				Log.w(LSystemDrawingService.TAG, "Ignoring " + key + " preference that isn't a number");
+				return Integer.parseInt(defaultValue);
+			}
+		}
+		
+		private void updateLinesPerSecond() {
+			if (completeInDuration && totalLines > 0) {
+				linesPerSecond = (double) totalLines / durationPreference;
+			} else {
+				linesPerSecond = speedPreference;
+			}
+			
+			// Carry on from where we are at the new speed
+			drawStartTime = -1;
+			linesAtStart = linesDrawn;
 		}
 		
 		private void readPreferences() {
+			DrawingStyle style = new DrawingStyle();
+			style.tailColor = preferences.getInt(WallpaperPreferencesActivity.tailColorKeyName, DrawingStyle.DEFAULT_TAIL_COLOR);
+			style.headColor = preferences.getInt(WallpaperPreferencesActivity.headColorKeyName, DrawingStyle.DEFAULT_HEAD_COLOR);
+			style.bgColor = preferences.getInt(WallpaperPreferencesActivity.bgColorKeyName, DrawingStyle.DEFAULT_BG_COLOR);
+			
 			// Pick tail color
 			tailPaint.setAntiAlias(true);
 			tailPaint.setStyle(Paint.Style.STROKE);
-			tailPaint.setStrokeWidth(4f);
-			tailPaint.setColor(preferences.getInt(WallpaperPreferencesActivity.tailColorKeyName, Color.WHITE));
+			tailPaint.setStrokeWidth(style.tailWidth);
+			tailPaint.setColor(style.tailColor);
 			
 			// Pick head/turtle color
 			headPaint.setAntiAlias(true);
 			headPaint.setStyle(Paint.Style.STROKE);
-			headPaint.setStrokeWidth(5f);
-			headPaint.setColor(preferences.getInt(WallpaperPreferencesActivity.headColorKeyName, Color.GREEN));
+			headPaint.setStrokeWidth(style.headWidth);
+			headPaint.setColor(style.headColor);
 			
 			// Pick background color
-			bgColor = preferences.getInt(WallpaperPreferencesActivity.bgColorKeyName, Color.BLACK);
+			bgColor = style.bgColor;
+			
+			// Show the debug overlay?
+			showHud = preferences.getBoolean(WallpaperPreferencesActivity.hudKeyName, false);
+			
+			// Pick transition
+			transition = Transition.fromPreference(preferences.getString(WallpaperPreferencesActivity.transitionKeyName,
+					WallpaperPreferencesActivity.transitionDefaultValue));
 			
 			// Pick L-System
 			String lsystemName = preferences.getString(WallpaperPreferencesActivity.lsystemKeyName, 
@@ -144,283 +378,478 @@ public class LSystemDrawingService extends WallpaperService {
 			
 			lsDesc = LSystemCatalogue.get(lsystemName);
 		}
-
+		
 		@Override
 		public void onVisibilityChanged(boolean visible) {
 			this.visible = visible;
 			if (visible) {
-				handler.post(drawRunner);
+				requestFullFrame();
 			} else {
-				handler.removeCallbacks(drawRunner);
+				frameScheduler.cancel();
 			}
 		}
-
+		
 		@Override
 		public void onSurfaceDestroyed(SurfaceHolder holder) {
 			super.onSurfaceDestroyed(holder);
 			this.visible = false;
-			handler.removeCallbacks(drawRunner);
+			frameScheduler.cancel();
+			releaseTailBitmap();
 		}
-
+		
 		@Override
 		public void onSurfaceChanged(SurfaceHolder holder, int format,
 				int width, int height) {
 			super.onSurfaceChanged(holder, format, width, height);
 			savedWidth = width;
+			savedHeight = height;
+			createTailBitmap();
+			requestFullFrame();
 		}
-
+		
 		@Override
 		public void onTouchEvent(MotionEvent event) {
 			
 		}
-
-		private void draw() {
+		
+		private void requestFullFrame() {
+			fullFrame = true;
+			if (visible) {
+				frameDueTime = -1;
+				frameScheduler.schedule(0);
+			}
+		}
+		
+		private void draw(long frameTime) {
+			Tracing.begin("draw");
+			try {
+				drawFrame(frameTime);
+			} finally {
+				Tracing.end();
+			}
+		}
+		
+		private void drawFrame(long frameTime) {
+			long workStartTime = System.nanoTime();
+			frameStats.addDeadline(frameDueTime, frameTime);
+			frameDueTime = -1;
+			
+			// Add the lines that are due to the tail first, to know what
+			// will change
+			int lines = 0;
+			if (state == DrawingState.DRAW) {
+				lines = addDueLines(frameTime);
+			}
+			
+			boolean fading = fadeBitmap != null || state == DrawingState.FADE;
+			boolean partial = findDirtyRect();
+			if (!fullFrame && !fading && !partial) {
+				// Nothing to do until the next line is due
+				scheduleNextFrame(frameTime);
+				return;
+			}
+			
 			SurfaceHolder holder = getSurfaceHolder();
 			Canvas canvas = null;
 			try {
-				canvas = holder.lockCanvas();
-				canvas.drawColor(bgColor);
+				if (partial) {
+					if (showHud) {
+						dirtyRect.union(hudRect);
+					}
+					canvas = holder.lockCanvas(dirtyRect);
+				} else {
+					canvas = holder.lockCanvas();
+				}
 				if (canvas != null) {
+					if (!partial) {
+						fullFrame = false;
+					}
+					canvas.drawColor(bgColor);
+					if (fading) {
+						long fadeWorkStartTime = System.nanoTime();
+						fadeLSystem(canvas, frameTime);
+						Metrics.histogram(Metrics.FADE).recordSince(fadeWorkStartTime);
+					}
 					if (state == DrawingState.DRAW) {
 						drawLSystem(canvas);
-					} else if (state == DrawingState.FADE) {
-						fadeLSystem(canvas);
+						if (!drawnFirstFrame) {
+							logFirstFrame();
+						}
+					}
+					if (showHud) {
+						drawHud(canvas);
 					}
+				} else {
+					// The lines added this time will need drawing later
+					fullFrame = true;
 				}
 			} finally {
 				if (canvas != null)
 					holder.unlockCanvasAndPost(canvas);
 			}
-			handler.removeCallbacks(drawRunner);
-			if (visible) {
-				handler.postDelayed(drawRunner, refreshSpeed);
+			haveDirtyLines = false;
+			if (canvas != null) {
+				long workTime = System.nanoTime() - workStartTime;
+				frameStats.addFrame(frameTime, workTime, lines);
+				Metrics.histogram(Metrics.FRAME).record(workTime);
 			}
+			scheduleNextFrame(frameTime);
+		}
+		
+		/*
+		 * Show how long recent frames took to draw, and how fast lines are
+		 * being drawn. The text is formatted every frame, so this allocates,
+		 * but it's only there for debugging.
+		 */
+		private void drawHud(Canvas canvas) {
+			canvas.drawRect(hudRect, hudBackgroundPaint);
+			
+			float x = hudRect.left + HUD_PADDING;
+			float y = hudRect.top + HUD_PADDING + HUD_LINE_HEIGHT;
+			canvas.drawText("State " + state + ", " + transition, x, y, hudPaint);
+			y += HUD_LINE_HEIGHT;
+			canvas.drawText(String.format("p50 %.1fms p95 %.1fms p99 %.1fms",
+					frameStats.percentile(50) / 1e6, frameStats.percentile(95) / 1e6,
+					frameStats.percentile(99) / 1e6), x, y, hudPaint);
+			y += HUD_LINE_HEIGHT;
+			canvas.drawText(String.format("%d of %d slow, %d late, %d dropped", frameStats.slowFrames,
+					frameStats.frames, frameStats.lateFrames, frameStats.droppedFrames), x, y, hudPaint);
+			y += HUD_LINE_HEIGHT;
+			canvas.drawText(String.format("%d lines/s, pacing for %.1f", frameStats.linesPerSecond, linesPerSecond),
+					x, y, hudPaint);
+			
+			// Frame times, 2ms to a bar, with the ones that are late in red
+			int biggest = Math.max(1, frameStats.histogram(hudBuckets, HUD_BUCKET_NANOS));
+			float barWidth = (float) (hudRect.width() - (HUD_PADDING * 2)) / HUD_BUCKETS;
+			float bottom = hudRect.bottom - HUD_PADDING;
+			for (int i = 0; i < HUD_BUCKETS; i++) {
+				hudBarPaint.setColor((i * HUD_BUCKET_NANOS >= FRAME_NANOS) ? Color.RED : Color.GREEN);
+				float left = x + (i * barWidth);
+				float height = (float) HUD_HISTOGRAM_HEIGHT * hudBuckets[i] / biggest;
+				canvas.drawRect(left, bottom - height, left + barWidth - 2, bottom, hudBarPaint);
+			}
+		}
+		
+		private void scheduleNextFrame(long frameTime) {
+			if (!visible) {
+				return;
+			}
+			if (fullFrame || fadeBitmap != null || state == DrawingState.FADE) {
+				scheduleFrame(frameTime, 0);
+			} else if (state == DrawingState.DRAW) {
+				if (drawStartTime < 0) {
+					scheduleFrame(frameTime, 0);
+					return;
+				}
+				
+				// Wait for the next line, rather than waking up every frame
+				long nextLineTime = drawStartTime
+						+ (long) ((linesDrawn - linesAtStart) * 1000000000.0 / linesPerSecond);
+				scheduleFrame(frameTime, Math.max(0, nextLineTime - frameTime));
+			}
+		}
+		
+		/*
+		 * Schedule a frame from inside another, the given time after it.
+		 * It's due on the first vsync at or after then, and at the soonest
+		 * the next one, so a frame that overruns makes the next one late.
+		 */
+		private void scheduleFrame(long frameTime, long delayNanos) {
+			long vsyncs = Math.max(1, (delayNanos + FRAME_NANOS - 1) / FRAME_NANOS);
+			frameDueTime = frameTime + vsyncs * FRAME_NANOS;
+			frameScheduler.schedule(delayNanos / 1000000);
+		}
+		
+		private void logFirstFrame() {
+			drawnFirstFrame = true;
+			Metrics.histogram(cacheEntry.wasCached ? Metrics.FIRST_FRAME_WARM : Metrics.FIRST_FRAME_COLD)
+					.recordSince(resetTime);
 		}
 		
 		private void drawOlderLines(Canvas canvas) {
-			for (Path tailLine : tailLines) {
-				canvas.drawPath(tailLine, tailPaint);
+			for (int i = 0; i < tailLineCount; i++) {
+				canvas.drawPath(tailLines.get(i), tailPaint);
 			}
 		}
 		
-		private void fadeLSystem(Canvas canvas) {
-			int newAlpha = tailPaint.getAlpha() - 16;
-			if (newAlpha < 0) {
-				changeToDrawState();
+		/*
+		 * Draw the next frame of the transition, which is one blit of the
+		 * finished drawing whichever it is.
+		 */
+		private void fadeLSystem(Canvas canvas, long frameTime) {
+			if (fadeBitmap == null || !fadeClock.step(frameTime)) {
+				fadeBitmap = null;
+				fadeCanvas = null;
+				if (state == DrawingState.FADE) {
+					changeToDrawState();
+				}
 				return;
 			}
-			tailPaint.setAlpha(newAlpha);
-			drawOlderLines(canvas);
+			
+			fadePaint.setAlpha(fadeClock.alpha());
+			switch (transition) {
+			case DISSOLVE:
+				dissolveBlocks(fadeClock.portionOf(dissolveOrder.length));
+				canvas.drawBitmap(fadeBitmap, 0, 0, null);
+				break;
+			case ZOOM_OUT:
+				float scale = 1.0f - fadeClock.progress;
+				canvas.save();
+				canvas.scale(scale, scale, savedWidth / 2.0f, savedHeight / 2.0f);
+				canvas.drawBitmap(fadeBitmap, 0, 0, fadePaint);
+				canvas.restore();
+				break;
+			default:
+				canvas.drawBitmap(fadeBitmap, 0, 0, fadePaint);
+				break;
+			}
 		}
 		
-		private void drawLSystem(Canvas canvas) {
+		/*
+		 * Take away blocks until the given number are gone.
+		 */
+		private void dissolveBlocks(int to) {
+			for (int i = dissolvedBlocks; i < to; i++) {
+				int left = (dissolveOrder[i] % dissolveColumns) * DISSOLVE_BLOCK_SIZE;
+				int top = (dissolveOrder[i] / dissolveColumns) * DISSOLVE_BLOCK_SIZE;
+				fadeCanvas.drawRect(left, top, left + DISSOLVE_BLOCK_SIZE, top + DISSOLVE_BLOCK_SIZE, dissolvePaint);
+			}
+			dissolvedBlocks = Math.max(dissolvedBlocks, to);
+		}
+		
+		/*
+		 * Swap the finished drawing out of the tail bitmap so it can fade
+		 * while the tail bitmap gets used again.
+		 */
+		private void startFade() {
+			fadeBitmap = null;
+			fadeCanvas = null;
+			fadeClock.restart();
+			dissolvedBlocks = 0;
+			if (tailBitmap == null) {
+				return;
+			}
 			
-			drawOlderLines(canvas);
+			if (spareBitmap == null) {
+				spareBitmap = Bitmap.createBitmap(savedWidth, savedHeight, Bitmap.Config.ARGB_8888);
+				spareCanvas = new Canvas(spareBitmap);
+			}
+			Bitmap finishedBitmap = tailBitmap;
+			Canvas finishedCanvas = tailCanvas;
+			tailBitmap = spareBitmap;
+			tailCanvas = spareCanvas;
+			spareBitmap = finishedBitmap;
+			spareCanvas = finishedCanvas;
 			
-			float newX = drawPos.x;
-			float newY = drawPos.y;
+			fadeBitmap = spareBitmap;
+			fadeCanvas = spareCanvas;
+		}
+		
+		private void releaseTailBitmap() {
+			if (tailBitmap != null) {
+				tailBitmap.recycle();
+				tailBitmap = null;
+				tailCanvas = null;
+			}
+			if (spareBitmap != null) {
+				spareBitmap.recycle();
+				spareBitmap = null;
+				spareCanvas = null;
+			}
+			fadeBitmap = null;
+			fadeCanvas = null;
+		}
+		
+		private void createTailBitmap() {
+			releaseTailBitmap();
+			if (savedWidth <= 0 || savedHeight <= 0) {
+				return;
+			}
 			
-			LSystem.Command cmd = lsystem.commands[currentCommand];
+			tailBitmap = Bitmap.createBitmap(savedWidth, savedHeight, Bitmap.Config.ARGB_8888);
+			tailCanvas = new Canvas(tailBitmap);
 			
-			boolean found = false;
+			// Shuffle the blocks for dissolving
+			dissolveColumns = (savedWidth + DISSOLVE_BLOCK_SIZE - 1) / DISSOLVE_BLOCK_SIZE;
+			int rows = (savedHeight + DISSOLVE_BLOCK_SIZE - 1) / DISSOLVE_BLOCK_SIZE;
+			dissolveOrder = new int[dissolveColumns * rows];
+			Random random = new Random();
+			for (int i = 0; i < dissolveOrder.length; i++) {
+				int j = random.nextInt(i + 1);
+				dissolveOrder[i] = dissolveOrder[j];
+				dissolveOrder[j] = i;
+			}
 			
-			// Find the next command that is a move that isn't distance 0.
-			while (!found) {
-				if ((cmd instanceof LSystem.Move)) {
-					if (((LSystem.Move)cmd).dist > 0.0f) {
-						found = true;
-					}
+			// Catch up with anything already drawn at the old size
+			if (state == DrawingState.DRAW) {
+				drawOlderLines(tailCanvas);
+			}
+		}
+		
+		/*
+		 * Add all the lines that should have been drawn by now to the tail,
+		 * leaving the head on the last of them.
+		 */
+		private int addDueLines(long frameTime) {
+			if (drawStartTime < 0) {
+				drawStartTime = frameTime;
+			}
+			long due = linesAtStart + 1
+					+ (long) ((frameTime - drawStartTime) * linesPerSecond / 1000000000.0)
+					- linesDrawn;
+			if (due <= 0) {
+				return 0;
+			}
+			if (due > MAX_LINES_PER_FRAME) {
+				due = MAX_LINES_PER_FRAME;
+			}
+			
+			// The last head goes back to looking like the tail
+			float[] v = vertices.vertices;
+			if (lines.from >= 0) {
+				addDirtyLine(v[lines.from], v[lines.from+1], v[lines.to], v[lines.to+1]);
+			}
+			
+			int added = 0;
+			for (long i = 0; i < due; i++) {
+				if (!lines.next()) {
+					changeToFadeState();
+					return added;
 				}
 				
-				if (!found) {
-					if (cmd instanceof LSystem.Turn) {
-						drawPos.angle += ((LSystem.Turn)cmd).angle;
-					}
-					
-					if (cmd instanceof LSystem.BranchStart) {
-						drawPosStack.add(drawPos.copy());
-					}
-					
-					if (cmd instanceof LSystem.BranchEnd) {
-						if (drawPosStack.size() > 0) {
-							drawPos = drawPosStack.remove(drawPosStack.size()-1);
-							currentTailLine = new Path();
-							currentTailLine.moveTo(drawPos.x, drawPos.y);
-							tailLines.add(currentTailLine);
-						} else {
-							Log.w("LSystem", "Encountered branch end with no matching branch start, skipping.");
-						}
-					}
-
-					currentCommand++;
-					if (currentCommand == lsystem.commands.length) {
-						changeToFadeState();
-						return;
-					}
-					cmd = lsystem.commands[currentCommand];
+				int from = lines.from;
+				int to = lines.to;
+				if (lines.startedStroke) {
+					startTailLine(v[from], v[from+1]);
 				}
+				currentTailLine.lineTo(v[to], v[to+1]);
+				if (tailCanvas != null) {
+					tailCanvas.drawLine(v[from], v[from+1], v[to], v[to+1], tailPaint);
+				}
+				addDirtyLine(v[from], v[from+1], v[to], v[to+1]);
+				linesDrawn++;
+				added++;
+			}
+			return added;
+		}
+		
+		private void addDirtyLine(float x0, float y0, float x1, float y1) {
+			if (!haveDirtyLines) {
+				dirtyMinX = dirtyMaxX = x0;
+				dirtyMinY = dirtyMaxY = y0;
+				haveDirtyLines = true;
+			}
+			dirtyMinX = Math.min(dirtyMinX, Math.min(x0, x1));
+			dirtyMinY = Math.min(dirtyMinY, Math.min(y0, y1));
+			dirtyMaxX = Math.max(dirtyMaxX, Math.max(x0, x1));
+			dirtyMaxY = Math.max(dirtyMaxY, Math.max(y0, y1));
+		}
+		
+		/*
+		 * While drawing, all that changes from one frame to the next is the
+		 * lines added since the last one, and the last head going back to
+		 * looking like the tail. Returns false if that isn't enough.
+		 */
+		private boolean findDirtyRect() {
+			if (fullFrame || state != DrawingState.DRAW || fadeBitmap != null
+					|| tailCanvas == null || !haveDirtyLines) {
+				return false;
 			}
 			
-			// Calculate the destination of the move.
-			float distance = ((LSystem.Move)cmd).dist * scalingFactor;
-			double radians = Math.toRadians(drawPos.angle);
-			newX = drawPos.x + (float) (Math.cos(radians)*distance);
-			newY = drawPos.y + (float) (Math.sin(radians)*distance);
-			
-			// Draw our new line
-			canvas.drawLine(drawPos.x, drawPos.y, newX, newY, headPaint);
-			
-			currentTailLine.lineTo(newX, newY);
+			// Leave room for the width of the lines and anti-aliasing
+			int pad = (int) Math.ceil(Math.max(headPaint.getStrokeWidth(), tailPaint.getStrokeWidth())) + 2;
+			dirtyRect.set((int) Math.floor(dirtyMinX) - pad, (int) Math.floor(dirtyMinY) - pad,
+					(int) Math.ceil(dirtyMaxX) + pad, (int) Math.ceil(dirtyMaxY) + pad);
+			return true;
+		}
+		
+		private void drawLSystem(Canvas canvas) {
 			
-			// Update our position
-			drawPos.x = newX;
-			drawPos.y = newY;
+			if (tailCanvas == null) {
+				drawOlderLines(canvas);
+			} else {
+				canvas.drawBitmap(tailBitmap, 0, 0, null);
+			}
 			
-			// Move onto the next command.
-			currentCommand++;
-			if (currentCommand == lsystem.commands.length) {
-				changeToFadeState();
+			// Draw the newest line as the head
+			if (lines.from >= 0) {
+				float[] v = vertices.vertices;
+				canvas.drawLine(v[lines.from], v[lines.from+1], v[lines.to], v[lines.to+1], headPaint);
 			}
 		}
 		
 		private void changeToFadeState() {
-			currentCommand = 0;
-			state = DrawingState.FADE;
+			startFade();
+			if (transition == Transition.CROSSFADE) {
+				changeToDrawState();
+			} else {
+				state = DrawingState.FADE;
+			}
 		}
 		
 		private void changeToDrawState() {
-			tailLines.clear();
-			currentTailLine = new Path();
-			currentTailLine.moveTo(originDrawPos.x, originDrawPos.y);
-			tailLines.add(currentTailLine);
-			drawPos = originDrawPos.copy();
-			tailPaint.setAlpha(255);
+			tailLineCount = 0;
+			lines.reset(vertices);
+			linesDrawn = 0;
+			updateLinesPerSecond();
+			startTailLine(vertices.vertices[0], vertices.vertices[1]);
+			clearTailBitmap();
+			fullFrame = true;
 			state = DrawingState.DRAW;
 		}
 		
-		private void prepareForDrawing() {	
-			// First thing we must do is run through all the commands ahead of time,
-			// and work out how much space we need to draw the L-System
-			DrawingPosition fakeDrawPos = new DrawingPosition(0, 0, 0);
-			List<DrawingPosition> fakeDrawPosStack = new LinkedList<DrawingPosition>();
-			int fakeCurrentCommand = 0;
-			
-			// The BB corners
-			DrawingPosition tlBound = new DrawingPosition(0, 0, 0);
-			DrawingPosition trBound = new DrawingPosition(0, 0, 0);
-			DrawingPosition blBound = new DrawingPosition(0, 0, 0);
-			DrawingPosition brBound = new DrawingPosition(0, 0, 0);
-
-			// Go through all the commands...
-			while (fakeCurrentCommand != lsystem.commands.length) {
-			
-				LSystem.Command cmd = lsystem.commands[fakeCurrentCommand];
-
-				boolean found = false;
-
-				// Find the next command that is a move that isn't distance 0.
-				while (!found) {
-					if ((cmd instanceof LSystem.Move)) {
-						if (((LSystem.Move)cmd).dist > 0.0f) {
-							found = true;
-						}
-					}
-
-					if (!found) {
-						if (cmd instanceof LSystem.Turn) {
-							fakeDrawPos.angle += ((LSystem.Turn)cmd).angle;
-						}
-
-						if (cmd instanceof LSystem.BranchStart) {
-							fakeDrawPosStack.add(fakeDrawPos.copy());
-						}
-
-						if (cmd instanceof LSystem.BranchEnd) {
-							if (fakeDrawPosStack.size() > 0) {
-								fakeDrawPos = fakeDrawPosStack.remove(fakeDrawPosStack.size()-1);
-							}
-						}
-
-						fakeCurrentCommand++;
-						if (fakeCurrentCommand == lsystem.commands.length) {
-							found = true;
-						} else {
-							cmd = lsystem.commands[fakeCurrentCommand];
-						}
-					}
-				}
-
-				// Are we finished "drawing" yet?
-				if (fakeCurrentCommand != lsystem.commands.length) {
-					// Calculate the destination of the move.
-					float distance = ((LSystem.Move)cmd).dist;
-					double radians = Math.toRadians(fakeDrawPos.angle);
-					fakeDrawPos.x += (float) (Math.cos(radians)*distance);
-					fakeDrawPos.y += (float) (Math.sin(radians)*distance);
-
-					if (fakeDrawPos.x < tlBound.x) {
-						tlBound.x = fakeDrawPos.x;
-						blBound.x = fakeDrawPos.x;
-					}
-					if (fakeDrawPos.y < tlBound.y) {
-						tlBound.y = fakeDrawPos.y;
-						trBound.y = fakeDrawPos.y;
-					}
-
-					if (fakeDrawPos.x > trBound.x) {
-						trBound.x = fakeDrawPos.x;
-						brBound.x = fakeDrawPos.x;
-					}
-					if (fakeDrawPos.y > blBound.y) {
-						blBound.y = fakeDrawPos.y;
-						brBound.y = fakeDrawPos.y;
-					}
-
-					// Move onto the next command.
-					fakeCurrentCommand++;
-				}
+		private void clearTailBitmap() {
+			if (tailBitmap != null) {
+				tailBitmap.eraseColor(Color.TRANSPARENT);
 			}
-			
-			// Now we calculate the bounds
-			float xLength = trBound.x - tlBound.x;
-			float yLength = tlBound.y - blBound.y;
-			
-			// Make 'em square
-			if (xLength > yLength) {
-				yLength = xLength;
-			} else if (yLength > xLength) {
-				xLength = yLength;
+		}
+		
+		private void startTailLine(float x, float y) {
+			if (tailLineCount == tailLines.size()) {
+				tailLines.add(new Path());
 			}
-			
-			// Calculate origin point as ratio of the bounding box
-			float originX = (-tlBound.x) / xLength;
-			float originY = (-tlBound.y) / yLength;
-			
-			// Set our drawing positions
-			drawPos = new DrawingPosition(50.0f + (originX * (savedWidth-100)), 
-					200.0f + (originY * (savedWidth-100)), 
-					0.0f);
-			originDrawPos = drawPos.copy();
-			
-			// Calculate our scaling factor
-			scalingFactor = (savedWidth-100) / xLength;
+			currentTailLine = tailLines.get(tailLineCount++);
+			currentTailLine.rewind();
+			currentTailLine.moveTo(x, y);
+		}
+		
+		private void prepareForDrawing() {
+			Tracing.begin("prepareForDrawing");
+			try {
+				layOutLines();
+			} finally {
+				Tracing.end();
+			}
+		}
+		
+		private void layOutLines() {
+			// Lay the lines out on the screen, starting from the origin
+			vertices = cacheEntry.vertices;
+			vertices.fitToScreen(cacheEntry.bounds, savedWidth);
+			lines.reset(vertices);
+			linesDrawn = 0;
+			totalLines = vertices.countLines();
+			updateLinesPerSecond();
 			
 			// Finally, add the tail lines
-			currentTailLine = new Path();
-			currentTailLine.moveTo(drawPos.x, drawPos.y);
-			tailLines = new LinkedList<Path>();
-			tailLines.add(currentTailLine);
+			tailLines = new ArrayList<Path>();
+			tailLineCount = 0;
+			startTailLine(vertices.vertices[0], vertices.vertices[1]);
+			clearTailBitmap();
 		}
 		
 		public void initOrReset() {
-			visible = true;
-			lsystem = null;
-			currentCommand = 0;
+			// Crossfade from whatever was there into the new L-System
+			if (state == DrawingState.DRAW && transition == Transition.CROSSFADE) {
+				startFade();
+			}
 			
-			drawPos = null;
-			drawPosStack = new LinkedList<DrawingPosition>();
+			visible = true;
+			cacheEntry = null;
+			vertices = null;
 			
-			originDrawPos = null;
+			resetTime = System.nanoTime();
+			drawnFirstFrame = false;
 			
 			state = DrawingState.PREPARE;
 			
@@ -428,9 +857,10 @@ public class LSystemDrawingService extends WallpaperService {
 			headPaint = new Paint();
 			
 			readPreferences();
+			requestFullFrame();
 			new LSystemGenerator().execute(lsDesc);
 		}
-
+		
 		@Override
 		public void onSharedPreferenceChanged(
 				SharedPreferences sharedPreferences, String key) {
@@ -441,8 +871,19 @@ public class LSystemDrawingService extends WallpaperService {
 					|| key.equals(WallpaperPreferencesActivity.bgColorKeyName)
 							) ) {
 				initOrReset();
-			} else if (key != null && key.equals(WallpaperPreferencesActivity.refreshSpeedKeyName)) {
-				refreshSpeed = Integer.parseInt(sharedPreferences.getString(WallpaperPreferencesActivity.refreshSpeedKeyName, "200"));
+			} else if (key != null && key.equals(WallpaperPreferencesActivity.transitionKeyName)) {
+				transition = Transition.fromPreference(sharedPreferences.getString(WallpaperPreferencesActivity.transitionKeyName,
+						WallpaperPreferencesActivity.transitionDefaultValue));
+			} else if (key != null &&
+					(key.equals(WallpaperPreferencesActivity.speedModeKeyName)
+					|| key.equals(WallpaperPreferencesActivity.speedKeyName)
+					|| key.equals(WallpaperPreferencesActivity.durationKeyName)
+							) ) {
+				readSpeedPreferences();
+			} else if (key != null && key.equals(WallpaperPreferencesActivity.hudKeyName)) {
+				showHud = sharedPreferences.getBoolean(WallpaperPreferencesActivity.hudKeyName, false);
+				frameStats.reset();
+				requestFullFrame();
 			}
 		}
 	} 
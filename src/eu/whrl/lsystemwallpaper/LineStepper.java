@@ -0,0 +1,55 @@
+package eu.whrl.lsystemwallpaper;
+
+/*
+ * Steps through the lines of a VertexBuffer one at a time, in the order the
+ * head draws them, jumping over the breaks where the turtle went back to
+ * the start of a branch. Anything that draws the lines one by one goes
+ * through this, so they all agree on what the lines are.
+ */
+public class LineStepper {
+	
+	private VertexBuffer vertices;
+	private int position;
+	
+	// The line stepped over last, as the indexes of the vertices at each
+	// end of it, or -1 before the first one.
+	public int from = -1;
+	public int to = -1;
+	
+	// Whether that line starts a new stroke, after a break
+	public boolean startedStroke;
+	
+	/*
+	 * Go back to the first vertex of the given lines.
+	 */
+	public void reset(VertexBuffer vertices) {
+		this.vertices = vertices;
+		position = 0;
+		from = -1;
+		to = -1;
+		startedStroke = false;
+	}
+	
+	/*
+	 * Move on to the next line, returning false if there aren't any more.
+	 */
+	public boolean next() {
+		int next = position + 2;
+		startedStroke = false;
+		
+		// Jumping back to the start of a branch starts a new line.
+		while (next < vertices.length && vertices.isBreak(next)) {
+			position = next + 2;
+			next = position + 2;
+			startedStroke = true;
+		}
+		if (next >= vertices.length) {
+			return false;
+		}
+		
+		from = position;
+		to = next;
+		position = next;
+		return true;
+	}
+}
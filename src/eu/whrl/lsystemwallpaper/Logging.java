@@ -0,0 +1,63 @@
+package eu.whrl.lsystemwallpaper;
+
+import java.io.PrintStream;
+
+/*
+ * Where the L-System core sends its log messages. The core doesn't need
+ * Android, so on a plain JVM (for benchmarks, say) they go to System.err.
+ * On a device AndroidPlatform replaces that with android.util.Log.
+ */
+public class Logging {
+	
+	public static final String TAG = "LSystemLW";
+	
+	public interface Logger {
+		void debug(String tag, String message);
+		void warn(String tag, String message);
+	}
+	
+	private static volatile Logger logger = new StreamLogger(System.err);
+	
+	public static void setLogger(Logger newLogger) {
+		logger = newLogger;
+	}
+	
+	public static void d(String tag, String message) {
+		logger.debug(tag, message);
+	}
+	
+	public static void w(String tag, String message) {
+		logger.warn(tag, message);
+	}
+	
+	/*
+	 * Drops everything, for when the messages would just get in the way.
+	 */
+	public static class SilentLogger implements Logger {
+		@Override
+		public void debug(String tag, String message) {
+		}
+		
+		@Override
+		public void warn(String tag, String message) {
+		}
+	}
+	
+	public static class StreamLogger implements Logger {
+		private PrintStream stream;
+		
+		public StreamLogger(PrintStream stream) {
+			this.stream = stream;
+		}
+		
+		@Override
+		public void debug(String tag, String message) {
+			stream.println("D/" + tag + ": " + message);
+		}
+		
+		@Override
+		public void warn(String tag, String message) {
+			stream.println("W/" + tag + ": " + message);
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package eu.whrl.lsystemwallpaper;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Counters and latency histograms for everything from reading an
+ * L-System to drawing its frames. Recording never takes a lock, so it can
+ * be done from the generator thread and every frame alike. The numbers are
+ * printed by "adb shell dumpsys" through LSystemDrawingService.dump(), and
+ * can be read back with snapshot().
+ */
+public class Metrics {
+	
+	// Names of what's recorded. The wallpaper never produces generations
+	// one at a time, it streams the whole expansion through the walk that
+	// lays it out, which is recorded as EXPAND_STREAMED.
+	public static final String PARSE = "parse";
+	public static final String EXPAND_GENERATION = "expand.gen";
+	public static final String EXPAND_STREAMED = "expand.streamed";
+	public static final String GENERATE = "generate";
+	public static final String PREPARE = "prepare";
+	public static final String TESSELLATE = "tessellate";
+	public static final String FIRST_FRAME_WARM = "firstframe.warm";
+	public static final String FIRST_FRAME_COLD = "firstframe.cold";
+	public static final String FRAME = "frame";
+	public static final String FADE = "fade";
+	public static final String CACHE_HIT = "cache.hit";
+	public static final String CACHE_MISS = "cache.miss";
+	
+	/*
+	 * Histograms have a bucket for each power of two nanoseconds, which is
+	 * plenty to tell a 1ms frame from a 20ms one, or a 1s expansion.
+	 */
+	private static final int BUCKETS = 40;
+	
+	public static class Counter {
+		private final AtomicLong value = new AtomicLong();
+		
+		public void increment() {
+			value.incrementAndGet();
+		}
+		
+		public void add(long n) {
+			value.addAndGet(n);
+		}
+		
+		public long get() {
+			return value.get();
+		}
+	}
+	
+	public static class Histogram {
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+		
+		public void record(long nanos) {
+			nanos = Math.max(nanos, 0);
+			buckets.incrementAndGet(bucketOf(nanos));
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			
+			long max = maxNanos.get();
+			while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+				max = maxNanos.get();
+			}
+		}
+		
+		/*
+		 * Record the time since a System.nanoTime() taken earlier.
+		 */
+		public void recordSince(long startNanos) {
+			record(System.nanoTime() - startNanos);
+		}
+		
+		public HistogramSnapshot snapshot() {
+			HistogramSnapshot s = new HistogramSnapshot();
+			s.buckets = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				s.buckets[i] = buckets.get(i);
+			}
+			s.count = count.get();
+			s.totalNanos = totalNanos.get();
+			s.maxNanos = maxNanos.get();
+			return s;
+		}
+		
+		private static int bucketOf(long nanos) {
+			return Math.min(64 - Long.numberOfLeadingZeros(nanos), BUCKETS - 1);
+		}
+	}
+	
+	/*
+	 * A copy of a histogram at one moment. The fields are read separately,
+	 * so one taken while something's being recorded can be out by a little.
+	 */
+	public static class HistogramSnapshot {
+		public long[] buckets;
+		public long count;
+		public long totalNanos;
+		public long maxNanos;
+		
+		public double meanMillis() {
+			return (count == 0) ? 0.0 : totalNanos / (count * 1e6);
+		}
+		
+		/*
+		 * The upper edge of the bucket the given percentile falls in, so
+		 * it's an overestimate by at most a factor of two.
+		 */
+		public double percentileMillis(int percent) {
+			long total = 0;
+			for (long b : buckets) {
+				total += b;
+			}
+			long wanted = (long) Math.ceil(percent / 100.0 * total);
+			long seen = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				seen += buckets[i];
+				if (seen >= wanted && seen > 0) {
+					return Math.min(1L << i, maxNanos) / 1e6;
+				}
+			}
+			return 0.0;
+		}
+	}
+	
+	public static class Snapshot {
+		public Map<String, Long> counters = new TreeMap<String, Long>();
+		public Map<String, HistogramSnapshot> histograms = new TreeMap<String, HistogramSnapshot>();
+	}
+	
+	private static final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+	private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+	
+	public static Counter counter(String name) {
+		Counter counter = counters.get(name);
+		if (counter == null) {
+			Counter newCounter = new Counter();
+			counter = counters.putIfAbsent(name, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+		return counter;
+	}
+	
+	public static Histogram histogram(String name) {
+		Histogram histogram = histograms.get(name);
+		if (histogram == null) {
+			Histogram newHistogram = new Histogram();
+			histogram = histograms.putIfAbsent(name, newHistogram);
+			if (histogram == null) {
+				histogram = newHistogram;
+			}
+		}
+		return histogram;
+	}
+	
+	public static Snapshot snapshot() {
+		Snapshot s = new Snapshot();
+		for (Map.Entry<String, Counter> e : counters.entrySet()) {
+			s.counters.put(e.getKey(), e.getValue().get());
+		}
+		for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+			s.histograms.put(e.getKey(), e.getValue().snapshot());
+		}
+		return s;
+	}
+	
+	public static void reset() {
+		counters.clear();
+		histograms.clear();
+	}
+	
+	public static void dump(String prefix, PrintWriter writer) {
+		Snapshot s = snapshot();
+		writer.print(prefix);
+		writer.println("Counters:");
+		for (Map.Entry<String, Long> e : s.counters.entrySet()) {
+			writer.print(prefix);
+			writer.println(String.format("  %-20s %d", e.getKey(), e.getValue()));
+		}
+		writer.print(prefix);
+		writer.println("Latencies (ms):");
+		for (Map.Entry<String, HistogramSnapshot> e : s.histograms.entrySet()) {
+			HistogramSnapshot h = e.getValue();
+			writer.print(prefix);
+			writer.println(String.format("  %-20s n=%d mean=%.3f p50<=%.3f p95<=%.3f p99<=%.3f max=%.3f",
+					e.getKey(), h.count, h.meanMillis(), h.percentileMillis(50), h.percentileMillis(95),
+					h.percentileMillis(99), h.maxNanos / 1e6));
+		}
+	}
+}
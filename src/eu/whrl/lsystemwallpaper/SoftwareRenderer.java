@@ -0,0 +1,250 @@
+package eu.whrl.lsystemwallpaper;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+
+/*
+ * Draws L-System frames into an int[] of ARGB pixels in plain Java, the
+ * same way the wallpaper draws them on a Canvas: the lines drawn so far in
+ * the tail colour, with the newest one on top in the head colour. The
+ * lines are stepped through with the same LineStepper as the wallpaper
+ * uses, and are anti-aliased with square ends. Frames can be written out
+ * as PNG, so none of this needs a device, and it keeps count of how many
+ * pixels and lines it's drawn, to see how fast it goes.
+ *
+ * "java eu.whrl.lsystemwallpaper.SoftwareRenderer <name> <width> <height> <png>"
+ * draws a whole L-System from the catalogue and prints how long it took.
+ */
+public class SoftwareRenderer {
+	
+	public final int width;
+	public final int height;
+	public final int[] pixels;
+	
+	private final LineStepper stepper = new LineStepper();
+	
+	// How much has been drawn since the last resetStats(). Segments are
+	// the lines of the L-System, not counting the head drawn over them
+	// again.
+	public long segments;
+	public long pixelsDrawn;
+	public long renderNanos;
+	
+	public SoftwareRenderer(int width, int height) {
+		this.width = width;
+		this.height = height;
+		pixels = new int[width * height];
+	}
+	
+	/*
+	 * Draw the frame the wallpaper shows once the given number of lines
+	 * are drawn. The vertices need to be laid out on the screen already,
+	 * see VertexBuffer.fitToScreen().
+	 */
+	public void renderFrame(VertexBuffer vertices, int lines, DrawingStyle style) {
+		long startTime = System.nanoTime();
+		
+		fill(style.bgColor);
+		
+		float[] v = vertices.vertices;
+		stepper.reset(vertices);
+		for (int i = 0; i < lines && stepper.next(); i++) {
+			int from = stepper.from;
+			int to = stepper.to;
+			drawLine(v[from], v[from+1], v[to], v[to+1], style.tailWidth, style.tailColor);
+			segments++;
+		}
+		
+		// Draw the newest line as the head
+		if (stepper.from >= 0) {
+			int from = stepper.from;
+			int to = stepper.to;
+			drawLine(v[from], v[from+1], v[to], v[to+1], style.headWidth, style.headColor);
+		}
+		
+		renderNanos += System.nanoTime() - startTime;
+	}
+	
+	public void fill(int color) {
+		Arrays.fill(pixels, color);
+	}
+	
+	/*
+	 * Draw a line with square ends that stop at its end points, like the
+	 * default Paint.Cap.BUTT the wallpaper draws with. Each pixel is
+	 * covered by how far its centre is inside the edges of the line, up
+	 * to a pixel, which is enough anti-aliasing to look like the Canvas
+	 * version. As on a Canvas, a line with no length draws nothing.
+	 */
+	public void drawLine(float x0, float y0, float x1, float y1, float strokeWidth, int color) {
+		float dx = x1 - x0;
+		float dy = y1 - y0;
+		float length = (float) Math.sqrt(dx * dx + dy * dy);
+		if (length <= 0.0f) {
+			return;
+		}
+		float ux = dx / length;
+		float uy = dy / length;
+		
+		float halfWidth = strokeWidth / 2.0f;
+		float reach = halfWidth + 0.5f;
+		
+		int minX = Math.max(0, (int) Math.floor(Math.min(x0, x1) - reach));
+		int maxX = Math.min(width - 1, (int) Math.ceil(Math.max(x0, x1) + reach));
+		int minY = Math.max(0, (int) Math.floor(Math.min(y0, y1) - reach));
+		int maxY = Math.min(height - 1, (int) Math.ceil(Math.max(y0, y1) + reach));
+		
+		float alpha = (color >>> 24) / 255.0f;
+		
+		for (int y = minY; y <= maxY; y++) {
+			float py = y + 0.5f;
+			int row = y * width;
+			for (int x = minX; x <= maxX; x++) {
+				float px = x + 0.5f;
+				
+				// How far along the line the pixel centre is, and how far
+				// to one side of it
+				float along = (px - x0) * ux + (py - y0) * uy;
+				float across = Math.abs((px - x0) * uy - (py - y0) * ux);
+				
+				float coverage = Math.min(reach - across, Math.min(along, length - along) + 0.5f);
+				if (coverage <= 0.0f) {
+					continue;
+				}
+				if (coverage > 1.0f) {
+					coverage = 1.0f;
+				}
+				pixels[row + x] = blend(pixels[row + x], color, alpha * coverage);
+				pixelsDrawn++;
+			}
+		}
+	}
+	
+	/*
+	 * Draw the colour over the pixel with the given opacity.
+	 */
+	private static int blend(int dst, int src, float a) {
+		if (a >= 1.0f) {
+			return src | 0xff000000;
+		}
+		float da = (dst >>> 24) / 255.0f;
+		float outA = a + da * (1.0f - a);
+		if (outA <= 0.0f) {
+			return 0;
+		}
+		float dstWeight = da * (1.0f - a);
+		int r = (int) ((((src >> 16) & 0xff) * a + ((dst >> 16) & 0xff) * dstWeight) / outA + 0.5f);
+		int g = (int) ((((src >> 8) & 0xff) * a + ((dst >> 8) & 0xff) * dstWeight) / outA + 0.5f);
+		int b = (int) (((src & 0xff) * a + (dst & 0xff) * dstWeight) / outA + 0.5f);
+		int alpha = (int) (outA * 255.0f + 0.5f);
+		return (alpha << 24) | (r << 16) | (g << 8) | b;
+	}
+	
+	public double pixelsPerSecond() {
+		return (renderNanos == 0) ? 0.0 : pixelsDrawn * 1e9 / renderNanos;
+	}
+	
+	public double segmentsPerSecond() {
+		return (renderNanos == 0) ? 0.0 : segments * 1e9 / renderNanos;
+	}
+	
+	public void resetStats() {
+		segments = 0;
+		pixelsDrawn = 0;
+		renderNanos = 0;
+	}
+	
+	/*
+	 * Write the pixels out as an 8-bit RGBA PNG.
+	 */
+	public void writePng(OutputStream out) throws IOException {
+		DataOutputStream png = new DataOutputStream(out);
+		png.write(new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' });
+		
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream headerData = new DataOutputStream(header);
+		headerData.writeInt(width);
+		headerData.writeInt(height);
+		headerData.writeByte(8);	// bits per channel
+		headerData.writeByte(6);	// RGBA
+		headerData.writeByte(0);	// deflate
+		headerData.writeByte(0);	// standard filters
+		headerData.writeByte(0);	// not interlaced
+		writeChunk(png, "IHDR", header.toByteArray());
+		
+		// Every row starts with filter type 0, meaning none
+		ByteArrayOutputStream image = new ByteArrayOutputStream();
+		DeflaterOutputStream deflater = new DeflaterOutputStream(image);
+		byte[] row = new byte[1 + width * 4];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int pixel = pixels[y * width + x];
+				row[1 + x * 4] = (byte) (pixel >> 16);
+				row[2 + x * 4] = (byte) (pixel >> 8);
+				row[3 + x * 4] = (byte) pixel;
+				row[4 + x * 4] = (byte) (pixel >>> 24);
+			}
+			deflater.write(row);
+		}
+		deflater.finish();
+		writeChunk(png, "IDAT", image.toByteArray());
+		
+		writeChunk(png, "IEND", new byte[0]);
+		png.flush();
+	}
+	
+	private static void writeChunk(DataOutputStream png, String type, byte[] data) throws IOException {
+		byte[] typeBytes = type.getBytes("US-ASCII");
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data);
+		
+		png.writeInt(data.length);
+		png.write(typeBytes);
+		png.write(data);
+		png.writeInt((int) crc.getValue());
+	}
+	
+	public static void main(String[] args) throws IOException {
+		if (args.length != 4) {
+			System.err.println("Usage: SoftwareRenderer <lsystem> <width> <height> <png>");
+			System.exit(1);
+		}
+		LSystemDescription description = LSystemCatalogue.get(args[0]);
+		if (description == null) {
+			System.err.println("No L-System called " + args[0] + ", try one of " + LSystemCatalogue.names());
+			System.exit(1);
+		}
+		int width = Integer.parseInt(args[1]);
+		int height = Integer.parseInt(args[2]);
+		
+		Logging.setLogger(new Logging.SilentLogger());
+		LSystem lsystem = new LSystem(description.iterations, description.turnAngle,
+				description.startState, description.functions);
+		LSystemCache.Entry entry = LSystemCache.layOut(lsystem, lsystem.cursor());
+		VertexBuffer vertices = entry.vertices;
+		vertices.fitToScreen(entry.bounds, width);
+		
+		SoftwareRenderer renderer = new SoftwareRenderer(width, height);
+		renderer.renderFrame(vertices, vertices.countLines(), new DrawingStyle());
+		
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(args[3]));
+		try {
+			renderer.writePng(out);
+		} finally {
+			out.close();
+		}
+		
+		System.out.println(String.format(Locale.US, "%s: %d segments, %d pixels in %.1fms, %.0f segments/s, %.0f pixels/s",
+				args[0], renderer.segments, renderer.pixelsDrawn, renderer.renderNanos / 1e6,
+				renderer.segmentsPerSecond(), renderer.pixelsPerSecond()));
+	}
+}
@@ -0,0 +1,110 @@
+package eu.whrl.lsystemwallpaper;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Begin and end markers around each stage, from reading an L-System to
+ * drawing its frames. They always go into a ring buffer of the most recent
+ * events, which can be written out as Chrome trace event JSON and opened
+ * in chrome://tracing, to see all the stages on one timeline. They can
+ * also be passed on to a Backend, which is how they get to systrace on a
+ * device (see AndroidPlatform).
+ *
+ * Sections must be ended on the thread that began them, in the reverse of
+ * the order they were begun.
+ */
+public class Tracing {
+	
+	private static final int CAPACITY = 8192;
+	
+	private static final char BEGIN = 'B';
+	private static final char END = 'E';
+	
+	private static final String[] names = new String[CAPACITY];
+	private static final char[] phases = new char[CAPACITY];
+	private static final long[] times = new long[CAPACITY];
+	private static final long[] threads = new long[CAPACITY];
+	
+	// Events are numbered as they're added, and event n goes in slot
+	// n % CAPACITY, overwriting whatever was there.
+	private static final AtomicLong nextEvent = new AtomicLong();
+	
+	public interface Backend {
+		void begin(String name);
+		void end();
+	}
+	
+	private static volatile Backend backend;
+	
+	public static void setBackend(Backend newBackend) {
+		backend = newBackend;
+	}
+	
+	public static void begin(String name) {
+		record(name, BEGIN);
+		Backend b = backend;
+		if (b != null) {
+			b.begin(name);
+		}
+	}
+	
+	public static void end() {
+		Backend b = backend;
+		if (b != null) {
+			b.end();
+		}
+		record(null, END);
+	}
+	
+	private static void record(String name, char phase) {
+		int slot = (int) (nextEvent.getAndIncrement() % CAPACITY);
+		names[slot] = name;
+		phases[slot] = phase;
+		times[slot] = System.nanoTime();
+		threads[slot] = Thread.currentThread().getId();
+	}
+	
+	/*
+	 * Write out the events in the buffer. Anything being recorded at the
+	 * same time may or may not make it in.
+	 */
+	public static void writeChromeTrace(Writer writer) throws IOException {
+		long last = nextEvent.get();
+		long first = Math.max(0, last - CAPACITY);
+		
+		writer.write("{\"traceEvents\":[");
+		boolean firstEvent = true;
+		for (long n = first; n < last; n++) {
+			int slot = (int) (n % CAPACITY);
+			if (!firstEvent) {
+				writer.write(",");
+			}
+			firstEvent = false;
+			
+			writer.write("\n{\"ph\":\"");
+			writer.write(phases[slot]);
+			writer.write("\",\"ts\":");
+			writer.write(String.format(Locale.US, "%.3f", times[slot] / 1000.0));
+			writer.write(",\"pid\":1,\"tid\":");
+			writer.write(Long.toString(threads[slot]));
+			if (phases[slot] == BEGIN) {
+				writer.write(",\"name\":\"");
+				writer.write(escape(names[slot]));
+				writer.write("\"");
+			}
+			writer.write("}");
+		}
+		writer.write("\n]}\n");
+		writer.flush();
+	}
+	
+	private static String escape(String name) {
+		if (name == null) {
+			return "";
+		}
+		return name.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+}
@@ -0,0 +1,50 @@
+package eu.whrl.lsystemwallpaper;
+
+/*
+ * How far through a transition each frame is. It's worked out from the
+ * frame times alone, starting at the first frame, so a transition takes
+ * the same time however often frames come.
+ */
+public class TransitionClock {
+	
+	public final long durationNanos;
+	private long startTime = -1;
+	
+	// From 0 at the first frame to 1 at the end
+	public float progress;
+	
+	public TransitionClock(long durationNanos) {
+		this.durationNanos = durationNanos;
+	}
+	
+	public void restart() {
+		startTime = -1;
+		progress = 0.0f;
+	}
+	
+	/*
+	 * Move on to the frame at the given time, returning false once the
+	 * transition is over.
+	 */
+	public boolean step(long frameTime) {
+		if (startTime < 0) {
+			startTime = frameTime;
+		}
+		progress = Math.min(1.0f, (float) (frameTime - startTime) / durationNanos);
+		return progress < 1.0f;
+	}
+	
+	/*
+	 * The alpha of whatever's fading out, from 255 down to 0.
+	 */
+	public int alpha() {
+		return (int) (255 * (1.0f - progress));
+	}
+	
+	/*
+	 * How many of the given number of things should be gone by now.
+	 */
+	public int portionOf(int total) {
+		return (int) (progress * total);
+	}
+}
@@ -0,0 +1,220 @@
+package eu.whrl.lsystemwallpaper;
+
+import java.util.Arrays;
+
+/*
+ * Runs the commands of an L-System through a turtle, starting at the
+ * origin facing along x, and tells some sinks where it goes. Everything
+ * that needs to know what an L-System looks like gets it from here, and
+ * several sinks can share the one walk over the commands.
+ */
+public class Turtle {
+	
+	public interface Sink {
+		/* The turtle starts here. */
+		void begin(float x, float y);
+		/* It moved, drawing a line. */
+		void lineTo(float x, float y);
+		/* It jumped back to the start of a branch, without drawing. */
+		void moveTo(float x, float y);
+		/* There are no more commands. */
+		void end();
+	}
+	
+	public static void walk(LSystem lsystem, CommandCursor cursor, Sink... sinks) {
+		DrawingPosition drawPos = lsystem.startingPosition();
+		DrawingPositionStack drawPosStack = new DrawingPositionStack();
+		
+		for (Sink sink : sinks) {
+			sink.begin(drawPos.x, drawPos.y);
+		}
+		
+		int cmd = cursor.next();
+		while (cmd != LSystem.END) {
+			switch (cmd) {
+			case LSystem.TURN_LEFT:
+			case LSystem.TURN_RIGHT:
+				drawPos.turn(lsystem.getTurns(cmd), lsystem.getAngle(cmd));
+				break;
+			case LSystem.BRANCH_START:
+				drawPosStack.push(drawPos);
+				break;
+			case LSystem.BRANCH_END:
+				if (drawPosStack.pop(drawPos)) {
+					for (Sink sink : sinks) {
+						sink.moveTo(drawPos.x, drawPos.y);
+					}
+				} else {
+					Logging.w("LSystem", "Encountered branch end with no matching branch start, skipping.");
+				}
+				break;
+			default:
+				// Only moves that aren't distance 0 actually draw anything.
+				float distance = lsystem.getDistance(cmd);
+				if (distance > 0.0f) {
+					drawPos.move(distance);
+					for (Sink sink : sinks) {
+						sink.lineTo(drawPos.x, drawPos.y);
+					}
+				}
+				break;
+			}
+			
+			cmd = cursor.next();
+		}
+		
+		for (Sink sink : sinks) {
+			sink.end();
+		}
+	}
+	
+	/*
+	 * Works out the smallest box holding everything drawn, and the origin.
+	 */
+	public static class BoundsSink implements Sink {
+		public LSystem.Bounds bounds = new LSystem.Bounds();
+		
+		@Override
+		public void begin(float x, float y) {
+			bounds = new LSystem.Bounds();
+		}
+		
+		@Override
+		public void lineTo(float x, float y) {
+			bounds.minX = Math.min(bounds.minX, x);
+			bounds.minY = Math.min(bounds.minY, y);
+			bounds.maxX = Math.max(bounds.maxX, x);
+			bounds.maxY = Math.max(bounds.maxY, y);
+		}
+		
+		@Override
+		public void moveTo(float x, float y) {
+			// Anywhere we can jump back to has been drawn to already
+		}
+		
+		@Override
+		public void end() {
+		}
+	}
+	
+	/*
+	 * Records the vertices drawn, see VertexBuffer.
+	 */
+	public static class VertexSink implements Sink {
+		private float[] vertices;
+		private int length;
+		private boolean startedLine;
+		
+		/*
+		 * The size of the L-System is used to make a buffer big enough for
+		 * anything it can draw: every move can add a vertex, and every
+		 * branch end a break and the vertex after it.
+		 */
+		public VertexSink(LSystem lsystem) {
+			long maxLength = maxLength(lsystem.predictSize());
+			if (maxLength > Integer.MAX_VALUE - 8) {
+				throw new IllegalStateException("Too many vertices to tessellate");
+			}
+			vertices = new float[(int) maxLength];
+		}
+		
+		private static long maxLength(LSystem.ExpansionSize size) {
+			if (size.moves > Long.MAX_VALUE / 64 || size.branches > Long.MAX_VALUE / 64) {
+				return Long.MAX_VALUE / 8;
+			}
+			return 2 * (1 + size.moves + 2 * size.branches);
+		}
+		
+		/*
+		 * The most heap laying out an expansion of this size takes at once,
+		 * which is the buffer above and the copy end() trims it into.
+		 */
+		public static long maxBytes(LSystem.ExpansionSize size) {
+			return 2 * 4 * maxLength(size);
+		}
+		
+		@Override
+		public void begin(float x, float y) {
+			length = 0;
+			vertices[length++] = x;
+			vertices[length++] = y;
+			startedLine = true;
+		}
+		
+		@Override
+		public void lineTo(float x, float y) {
+			vertices[length++] = x;
+			vertices[length++] = y;
+			startedLine = false;
+		}
+		
+		@Override
+		public void moveTo(float x, float y) {
+			// If nothing's been drawn since the last line started, just
+			// start it from here instead.
+			if (!startedLine) {
+				vertices[length++] = VertexBuffer.BREAK;
+				vertices[length++] = VertexBuffer.BREAK;
+				length += 2;
+			}
+			vertices[length-2] = x;
+			vertices[length-1] = y;
+			startedLine = true;
+		}
+		
+		@Override
+		public void end() {
+			if (length < vertices.length) {
+				vertices = Arrays.copyOf(vertices, length);
+			}
+		}
+		
+		public VertexBuffer getVertexBuffer() {
+			return new VertexBuffer(vertices, length);
+		}
+	}
+	
+	/*
+	 * Counts what gets drawn, for logging.
+	 */
+	public static class StatsSink implements Sink {
+		public long lines;
+		public long jumps;
+		public double length;
+		private float lastX;
+		private float lastY;
+		
+		@Override
+		public void begin(float x, float y) {
+			lines = 0;
+			jumps = 0;
+			length = 0.0;
+			lastX = x;
+			lastY = y;
+		}
+		
+		@Override
+		public void lineTo(float x, float y) {
+			lines++;
+			length += Math.hypot(x - lastX, y - lastY);
+			lastX = x;
+			lastY = y;
+		}
+		
+		@Override
+		public void moveTo(float x, float y) {
+			jumps++;
+			lastX = x;
+			lastY = y;
+		}
+		
+		@Override
+		public void end() {
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("%d lines, %d jumps, %.1f long", lines, jumps, length);
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package eu.whrl.lsystemwallpaper;
+
+/*
+ * The lines an L-System draws, worked out once up front, as a flat array of
+ * x, y vertices. Each vertex is the end of a line from the one before it,
+ * except that a BREAK (x and y both NaN) means the turtle jumped back to
+ * the start of a branch, and the vertex after it starts a new line.
+ * The first vertex is where the turtle starts.
+ */
+public class VertexBuffer {
+	
+	public static final float BREAK = Float.NaN;
+	
+	public float[] vertices;
+	public int length;
+	
+	public VertexBuffer(float[] vertices, int length) {
+		this.vertices = vertices;
+		this.length = length;
+	}
+	
+	/*
+	 * Run the commands through a turtle and record where it draws.
+	 */
+	public static VertexBuffer tessellate(LSystem lsystem, CommandCursor cursor) {
+		long startTime = System.nanoTime();
+		Turtle.VertexSink sink = new Turtle.VertexSink(lsystem);
+		Turtle.walk(lsystem, cursor, sink);
+		Metrics.histogram(Metrics.TESSELLATE).recordSince(startTime);
+		return sink.getVertexBuffer();
+	}
+	
+	/*
+	 * Scale every vertex and move it to the origin given, leaving breaks
+	 * as they are.
+	 */
+	public void transform(float scale, float originX, float originY) {
+		for (int i = 0; i < length; i += 2) {
+			if (!isBreak(i)) {
+				vertices[i] = originX + vertices[i] * scale;
+				vertices[i+1] = originY + vertices[i+1] * scale;
+			}
+		}
+	}
+	
+	/*
+	 * Lay the lines out on a screen of the given width, the way the
+	 * wallpaper draws them: scaled to fit across it with a margin either
+	 * side, and a little way down from the top.
+	 */
+	public void fitToScreen(LSystem.Bounds bounds, int width) {
+		// Now we calculate the bounds
+		float xLength = bounds.maxX - bounds.minX;
+		float yLength = bounds.minY - bounds.maxY;
+		
+		// Make 'em square
+		if (xLength > yLength) {
+			yLength = xLength;
+		} else if (yLength > xLength) {
+			xLength = yLength;
+		}
+		
+		// Calculate origin point as ratio of the bounding box
+		float originX = (-bounds.minX) / xLength;
+		float originY = (-bounds.minY) / yLength;
+		
+		// Calculate our scaling factor
+		float scalingFactor = (width-100) / xLength;
+		
+		transform(scalingFactor,
+				50.0f + (originX * (width-100)), 
+				200.0f + (originY * (width-100)));
+	}
+	
+	/*
+	 * How many lines get drawn, which is every vertex apart from the first
+	 * and the ones that start a line after a break.
+	 */
+	public int countLines() {
+		LineStepper stepper = new LineStepper();
+		stepper.reset(this);
+		int lines = 0;
+		while (stepper.next()) {
+			lines++;
+		}
+		return lines;
+	}
+	
+	public boolean isBreak(int i) {
+		return Float.isNaN(vertices[i]);
+	}
+}
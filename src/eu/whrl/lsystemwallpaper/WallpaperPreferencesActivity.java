@@ -18,30 +18,71 @@ public class WallpaperPreferencesActivity extends PreferenceActivity
 	public final static String tailColorKeyName = "tailcolor";
 	public final static String bgColorKeyName = "bgcolor";
 	
-	public final static String refreshSpeedKeyName = "refreshspeed";
+	// Replaced by speedKeyName, see upgradePreferences()
+	public final static String oldRefreshSpeedKeyName = "refreshspeed";
+	
+	public final static String speedModeKeyName = "speedmode";
+	public final static String speedModeDefaultValue = "speed";
+	public final static String speedKeyName = "speed";
+	public final static String speedDefaultValue = "5";
+	public final static String durationKeyName = "duration";
+	public final static String durationDefaultValue = "60";
+	
+	public final static String transitionKeyName = "transition";
+	public final static String transitionDefaultValue = "fade";
+	
+	public final static String hudKeyName = "debughud";
 	
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		getPreferenceManager().setSharedPreferencesName(name);
+		upgradePreferences(getPreferenceManager().getSharedPreferences());
 		addPreferencesFromResource(R.xml.prefs);
 		getPreferenceManager().getSharedPreferences().registerOnSharedPreferenceChangeListener(this);
 		
-		getPreferenceScreen().findPreference(refreshSpeedKeyName).setOnPreferenceChangeListener(numberCheckListener);
+		getPreferenceScreen().findPreference(speedKeyName).setOnPreferenceChangeListener(numberCheckListener);
+		getPreferenceScreen().findPreference(durationKeyName).setOnPreferenceChangeListener(numberCheckListener);
+	}
+	
+	/*
+	 * Carry on at the same speed as the old refresh speed, the milliseconds
+	 * between lines, if there was one. This has to be written before the
+	 * preferences screen is loaded, or its default speed gets saved first.
+	 */
+	public static void upgradePreferences(SharedPreferences preferences) {
+		if (!preferences.contains(oldRefreshSpeedKeyName)) {
+			return;
+		}
+		
+		SharedPreferences.Editor editor = preferences.edit();
+		if (!preferences.contains(speedKeyName)) {
+			try {
+				int refreshSpeed = Integer.parseInt(preferences.getString(oldRefreshSpeedKeyName, "200"));
+				editor.putString(speedKeyName, Integer.toString(Math.max(1, 1000 / Math.max(refreshSpeed, 1))));
+			} catch (NumberFormatException e) {
+				// Just use the default speed
+			}
+		}
+		editor.remove(oldRefreshSpeedKeyName);
+		editor.commit();
 	}
 	
 	public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
 		// nix
 	}
-
+	
+	// Short enough to always fit in an int
+	private static final int MAX_NUMBER_DIGITS = 6;
+	
 	Preference.OnPreferenceChangeListener numberCheckListener = new OnPreferenceChangeListener() {
 		@Override
 		public boolean onPreferenceChange(Preference preference, Object newValue) {
 			if (newValue != null && newValue.toString().length() > 0
-					&& newValue.toString().matches("\\d+")) {
+					&& newValue.toString().matches("\\d{1," + MAX_NUMBER_DIGITS + "}")) {
 				return true;
 			}
-
+			
 			Toast.makeText(WallpaperPreferencesActivity.this, "Enter a number!",
 					Toast.LENGTH_SHORT).show();
 			return false;
@@ -0,0 +1,165 @@
+package eu.whrl.lsystemwallpaper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * Once warmed up, branching and stepping through frames and transitions
+ * shouldn't allocate anything, or branch-heavy L-Systems make the GC
+ * hiccup while drawing.
+ * Allocation is measured with the per-thread byte counts the JVM keeps.
+ */
+public class AllocationTest {
+	
+	private static final int WARMUP = 2000;
+	private static final int FRAMES = 500;
+	
+	private com.sun.management.ThreadMXBean threads;
+	
+	@Before
+	public void setUp() {
+		Logging.setLogger(new Logging.SilentLogger());
+		threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assertTrue("Thread allocation counting isn't supported", threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+	}
+	
+	private long allocatedBytes() {
+		return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	
+	private static LSystem make(String name, int iterations) {
+		LSystemDescription d = LSystemCatalogue.get(name);
+		return new LSystem(iterations, d.turnAngle, d.startState, d.functions);
+	}
+	
+	@Test
+	public void pushingAndPoppingDoesNotAllocate() {
+		DrawingPositionStack stack = new DrawingPositionStack();
+		DrawingPosition position = make("tree", 1).startingPosition();
+		
+		for (int i = 0; i < WARMUP; i++) {
+			pushAndPop(stack, position);
+		}
+		
+		long before = allocatedBytes();
+		for (int i = 0; i < WARMUP; i++) {
+			pushAndPop(stack, position);
+		}
+		assertEquals(0, allocatedBytes() - before);
+	}
+	
+	private static void pushAndPop(DrawingPositionStack stack, DrawingPosition position) {
+		for (int depth = 0; depth < 100; depth++) {
+			stack.push(position);
+			position.move(1.0f);
+		}
+		while (stack.pop(position)) {
+		}
+	}
+	
+	/*
+	 * A walk makes its turtle, stack and cursor up front, but after that
+	 * nothing is allocated however many branches there are.
+	 */
+	@Test
+	public void branchesDoNotAllocate() {
+		for (String name : new String[] { "tree", "fractalplant" }) {
+			LSystem lsystem = make(name, 6);
+			assertTrue(lsystem.predictSize().branches > 2000);
+			
+			Turtle.StatsSink stats = new Turtle.StatsSink();
+			for (int i = 0; i < WARMUP; i++) {
+				Turtle.walk(lsystem, lsystem.cursor(), stats);
+			}
+			
+			long before = allocatedBytes();
+			Turtle.walk(lsystem, lsystem.cursor(), stats);
+			long walkBytes = allocatedBytes() - before;
+			assertTrue(name + " allocated " + walkBytes + " bytes in one walk", walkBytes < 1024);
+		}
+	}
+	
+	/*
+	 * Stepping through the lines a frame at a time, as the engine does,
+	 * starting again each time it gets to the end.
+	 */
+	@Test
+	public void framesDoNotAllocate() {
+		LSystem lsystem = make("fractalplant", 4);
+		VertexBuffer vertices = VertexBuffer.tessellate(lsystem, lsystem.cursor());
+		LineStepper lines = new LineStepper();
+		lines.reset(vertices);
+		
+		for (int i = 0; i < WARMUP; i++) {
+			stepFrame(lines, vertices, i);
+		}
+		
+		long before = allocatedBytes();
+		for (int i = 0; i < FRAMES; i++) {
+			stepFrame(lines, vertices, i);
+		}
+		assertEquals(0, allocatedBytes() - before);
+	}
+	
+	private static void stepFrame(LineStepper lines, VertexBuffer vertices, int frame) {
+		for (int due = 1 + frame % 7; due > 0; due--) {
+			if (!lines.next()) {
+				lines.reset(vertices);
+			}
+		}
+	}
+	
+	/*
+	 * Each frame of a transition is one step of its clock.
+	 */
+	@Test
+	public void fadeStepsDoNotAllocate() {
+		TransitionClock clock = new TransitionClock(1000L * 1000 * 1000);
+		int[] total = new int[1];
+		for (int i = 0; i < WARMUP; i++) {
+			fadeFrame(clock, i, total);
+		}
+		
+		long before = allocatedBytes();
+		for (int i = 0; i < FRAMES; i++) {
+			fadeFrame(clock, i, total);
+		}
+		assertEquals(0, allocatedBytes() - before);
+	}
+	
+	private static void fadeFrame(TransitionClock clock, int frame, int[] total) {
+		if (!clock.step(frame * 16666667L)) {
+			clock.restart();
+		}
+		total[0] += clock.alpha() + clock.portionOf(100);
+	}
+	
+	/*
+	 * The software renderer steps through the lines the same way.
+	 */
+	@Test
+	public void softwareFramesDoNotAllocate() {
+		LSystem lsystem = make("fractalplant", 4);
+		VertexBuffer vertices = VertexBuffer.tessellate(lsystem, lsystem.cursor());
+		vertices.fitToScreen(lsystem.computeBounds(), 120);
+		int lines = vertices.countLines();
+		
+		SoftwareRenderer renderer = new SoftwareRenderer(120, 200);
+		DrawingStyle style = new DrawingStyle();
+		for (int i = 0; i < FRAMES; i++) {
+			renderer.renderFrame(vertices, i % lines, style);
+		}
+		
+		long before = allocatedBytes();
+		for (int i = 0; i < FRAMES; i++) {
+			renderer.renderFrame(vertices, i % lines, style);
+		}
+		assertEquals(0, allocatedBytes() - before);
+	}
+}
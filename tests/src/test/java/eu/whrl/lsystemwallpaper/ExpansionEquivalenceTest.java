@@ -0,0 +1,152 @@
+package eu.whrl.lsystemwallpaper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * Every way of getting at the commands of an expansion has to give the
+ * same ones: producing them, streaming them through a cursor, seeking,
+ * expanding across threads and advancing a generation at a time. The
+ * bounds worked out from the transform memo have to match walking them.
+ */
+public class ExpansionEquivalenceTest {
+	
+	// Deep enough to be interesting, small enough to check every command
+	private static final long MAX_COMMANDS = 300 * 1000;
+	
+	// Enough for expansion to actually be split across threads
+	private static final long MIN_PARALLEL_COMMANDS = 512 * 1024;
+	
+	private static final int SEEKS = 2000;
+	
+	@Before
+	public void setUp() {
+		Logging.setLogger(new Logging.SilentLogger());
+	}
+	
+	private static LSystem make(String name, int iterations) {
+		LSystemDescription d = LSystemCatalogue.get(name);
+		return new LSystem(iterations, d.turnAngle, d.startState, d.functions);
+	}
+	
+	/*
+	 * The deepest iterations of the L-System with at most the given number
+	 * of commands.
+	 */
+	private static int deepest(String name, long maxCommands) {
+		LSystem lsystem = make(name, 1);
+		int iterations = 1;
+		while (lsystem.predictSize(iterations + 1).commands <= maxCommands) {
+			iterations++;
+		}
+		return iterations;
+	}
+	
+	private static byte[] produce(String name, int iterations, int threads) {
+		LSystem lsystem = make(name, iterations);
+		lsystem.produceCommands(iterations, threads);
+		return lsystem.commands;
+	}
+	
+	@Test
+	public void cursorStreamsTheExpansion() {
+		for (String name : LSystemCatalogue.names()) {
+			int iterations = deepest(name, MAX_COMMANDS);
+			LSystem lsystem = make(name, iterations);
+			byte[] commands = produce(name, iterations, 1);
+			assertEquals(name, lsystem.predictSize().commands, commands.length);
+			
+			LSystem.Cursor cursor = lsystem.cursor();
+			for (int i = 0; i < commands.length; i++) {
+				assertEquals(name + " at " + i, commands[i] & 0xff, cursor.next());
+			}
+			assertEquals(name, LSystem.END, cursor.next());
+		}
+	}
+	
+	@Test
+	public void seekingMatchesTheExpansion() {
+		Random random = new Random(1);
+		for (String name : LSystemCatalogue.names()) {
+			int iterations = deepest(name, MAX_COMMANDS);
+			LSystem lsystem = make(name, iterations);
+			byte[] commands = produce(name, iterations, 1);
+			
+			LSystem.Cursor cursor = lsystem.cursor();
+			for (int s = 0; s < SEEKS; s++) {
+				int index = random.nextInt(commands.length);
+				assertEquals(name + " at " + index, commands[index] & 0xff, lsystem.commandAt(index));
+				
+				// Carrying on from a seek has to work too
+				cursor.seek(index);
+				assertEquals(name, index, cursor.getIndex());
+				for (int i = index; i < Math.min(index + 16, commands.length); i++) {
+					assertEquals(name + " at " + i + " after seeking to " + index, commands[i] & 0xff, cursor.next());
+				}
+			}
+			
+			cursor.seek(commands.length);
+			assertEquals(name, LSystem.END, cursor.next());
+			cursor.reset();
+			assertEquals(name, commands[0] & 0xff, cursor.next());
+		}
+	}
+	
+	@Test
+	public void parallelExpansionMatches() {
+		int checked = 0;
+		for (String name : LSystemCatalogue.names()) {
+			int iterations = deepest(name, 4 * MIN_PARALLEL_COMMANDS);
+			if (make(name, iterations).predictSize().commands < MIN_PARALLEL_COMMANDS) {
+				continue;
+			}
+			byte[] commands = produce(name, iterations, 1);
+			assertArrayEquals(name, commands, produce(name, iterations, 2));
+			assertArrayEquals(name, commands, produce(name, iterations, 4));
+			checked++;
+		}
+		assertTrue("Nothing was big enough to expand in parallel", checked > 0);
+	}
+	
+	@Test
+	public void advancingMatchesProducing() {
+		for (String name : LSystemCatalogue.names()) {
+			int iterations = deepest(name, MAX_COMMANDS);
+			LSystem lsystem = make(name, 1);
+			lsystem.produceCommands();
+			for (int i = 2; i <= iterations; i++) {
+				lsystem.advance();
+				assertEquals(name, i, lsystem.getIterations());
+				assertArrayEquals(name + " advanced to " + i, produce(name, i, 1), lsystem.commands);
+			}
+		}
+	}
+	
+	@Test
+	public void memoisedBoundsMatchWalking() {
+		for (String name : LSystemCatalogue.names()) {
+			int iterations = deepest(name, MAX_COMMANDS);
+			LSystem lsystem = make(name, iterations);
+			LSystem.Bounds memo = lsystem.computeBounds();
+			
+			Turtle.BoundsSink walked = new Turtle.BoundsSink();
+			Turtle.walk(lsystem, lsystem.cursor(), walked);
+			
+			// The two add up the moves in a different order, so can be out
+			// by a little rounding
+			float size = Math.max(walked.bounds.maxX - walked.bounds.minX, walked.bounds.maxY - walked.bounds.minY);
+			float tolerance = Math.max(size * 1e-4f, 1e-3f);
+			assertTrue(name, size > 0.0f);
+			assertEquals(name, walked.bounds.minX, memo.minX, tolerance);
+			assertEquals(name, walked.bounds.minY, memo.minY, tolerance);
+			assertEquals(name, walked.bounds.maxX, memo.maxX, tolerance);
+			assertEquals(name, walked.bounds.maxY, memo.maxY, tolerance);
+		}
+	}
+}
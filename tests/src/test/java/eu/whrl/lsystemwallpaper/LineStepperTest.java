@@ -0,0 +1,58 @@
+package eu.whrl.lsystemwallpaper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LineStepperTest {
+	
+	private static final float B = VertexBuffer.BREAK;
+	
+	@Test
+	public void stepsOverBreaks() {
+		// A line, then a jump back to (1, 0) and two more lines
+		VertexBuffer vertices = new VertexBuffer(new float[] {
+				0, 0,  1, 0,  B, B,  1, 0,  1, 1,  2, 1 }, 12);
+		LineStepper lines = new LineStepper();
+		lines.reset(vertices);
+		
+		assertTrue(lines.next());
+		assertEquals(0, lines.from);
+		assertEquals(2, lines.to);
+		assertFalse(lines.startedStroke);
+		
+		assertTrue(lines.next());
+		assertEquals(6, lines.from);
+		assertEquals(8, lines.to);
+		assertTrue(lines.startedStroke);
+		
+		assertTrue(lines.next());
+		assertEquals(8, lines.from);
+		assertEquals(10, lines.to);
+		assertFalse(lines.startedStroke);
+		
+		assertFalse(lines.next());
+		assertEquals(3, vertices.countLines());
+	}
+	
+	@Test
+	public void stepsOverEveryLine() {
+		for (String name : LSystemCatalogue.names()) {
+			LSystemDescription d = LSystemCatalogue.get(name);
+			LSystem lsystem = new LSystem(d.iterations, d.turnAngle, d.startState, d.functions);
+			VertexBuffer vertices = VertexBuffer.tessellate(lsystem, lsystem.cursor());
+			
+			LineStepper lines = new LineStepper();
+			lines.reset(vertices);
+			int count = 0;
+			while (lines.next()) {
+				assertFalse(vertices.isBreak(lines.from));
+				assertFalse(vertices.isBreak(lines.to));
+				count++;
+			}
+			assertEquals(name, vertices.countLines(), count);
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package eu.whrl.lsystemwallpaper;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * Golden images, kept as a CRC of their pixels. If one of these changes on
+ * purpose, look at the PNG written to target/ and update the CRC. They're
+ * laid out the way the wallpaper does it, with LSystemCache.layOut().
+ */
+public class SoftwareRendererTest {
+	
+	private static final int WIDTH = 160;
+	private static final int HEIGHT = 280;
+	
+	@Before
+	public void setUp() {
+		Logging.setLogger(new Logging.SilentLogger());
+	}
+	
+	@Test
+	public void hilbert() throws IOException {
+		assertGolden("hilbert", 3, 0x3930fb71L);
+	}
+	
+	@Test
+	public void tree() throws IOException {
+		assertGolden("tree", 3, 0x07789769L);
+	}
+	
+	private static void assertGolden(String name, int iterations, long crc) throws IOException {
+		LSystemDescription d = LSystemCatalogue.get(name);
+		LSystem lsystem = new LSystem(iterations, d.turnAngle, d.startState, d.functions);
+		LSystemCache.Entry entry = LSystemCache.layOut(lsystem, lsystem.cursor());
+		entry.vertices.fitToScreen(entry.bounds, WIDTH);
+		
+		SoftwareRenderer renderer = new SoftwareRenderer(WIDTH, HEIGHT);
+		renderer.renderFrame(entry.vertices, entry.vertices.countLines(), new DrawingStyle());
+		
+		CRC32 pixels = new CRC32();
+		for (int pixel : renderer.pixels) {
+			pixels.update(pixel >>> 24);
+			pixels.update(pixel >>> 16);
+			pixels.update(pixel >>> 8);
+			pixels.update(pixel);
+		}
+		if (pixels.getValue() != crc) {
+			OutputStream out = new FileOutputStream(new File("target", name + ".png"));
+			try {
+				renderer.writePng(out);
+			} finally {
+				out.close();
+			}
+		}
+		assertEquals(name + " doesn't match its golden image, see target/" + name + ".png",
+				Long.toHexString(crc), Long.toHexString(pixels.getValue()));
+	}
+}